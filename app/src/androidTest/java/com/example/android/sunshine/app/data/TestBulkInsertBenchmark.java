@@ -0,0 +1,136 @@
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Times the weather bulk insert through the compiled statement against the insert() per row
+    it replaced, for a sync's worth of rows, a large batch and a very large one.  Timings are
+    logged under the TestBulkInsertBenchmark tag rather than asserted on, since they depend
+    on whatever else the device is doing.
+ */
+public class TestBulkInsertBenchmark extends AndroidTestCase {
+    private static final String LOG_TAG = TestBulkInsertBenchmark.class.getSimpleName();
+
+    private static final int[] ROW_COUNTS = {14, 1000, 100000};
+
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
+    private WeatherDbHelper mDbHelper;
+    private SQLiteDatabase mDb;
+    private long mLocationRowId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDbHelper = new WeatherDbHelper(mContext);
+        mDb = mDbHelper.getWritableDatabase();
+        deleteAllRecords();
+        mLocationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        mDbHelper.close();
+        super.tearDown();
+    }
+
+    public void testCompiledStatementVersusInsert() {
+        for (int rows : ROW_COUNTS) {
+            long insertMillis = timeInsertPerRow(createRows(rows));
+            assertEquals(rows, countRows());
+            mDb.delete(WeatherEntry.TABLE_NAME, null, null);
+
+            long statementMillis = timeCompiledStatement(createRows(rows));
+            assertEquals(rows, countRows());
+            mDb.delete(WeatherEntry.TABLE_NAME, null, null);
+
+            Log.i(LOG_TAG, rows + " rows: insert() " + insertMillis + "ms, compiled statement "
+                    + statementMillis + "ms");
+        }
+    }
+
+    public void testCompiledStatementStoresWhatInsertDoes() {
+        ContentValues[] rows = createRows(2);
+        timeInsertPerRow(new ContentValues[]{rows[0]});
+        timeCompiledStatement(new ContentValues[]{rows[1]});
+
+        Cursor cursor = mDb.query(WeatherEntry.TABLE_NAME, null, null, null, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        try {
+            assertEquals(2, cursor.getCount());
+            cursor.moveToFirst();
+            ContentValues byInsert = new ContentValues();
+            DatabaseUtils.cursorRowToContentValues(cursor, byInsert);
+            cursor.moveToNext();
+            ContentValues byStatement = new ContentValues();
+            DatabaseUtils.cursorRowToContentValues(cursor, byStatement);
+
+            assertEquals(rows[1].getAsLong(WeatherEntry.COLUMN_DATE),
+                    byStatement.getAsLong(WeatherEntry.COLUMN_DATE));
+            // Apart from the row id and the date, the rows should be stored identically
+            for (String column : new String[]{WeatherEntry._ID, WeatherEntry.COLUMN_DATE}) {
+                byInsert.remove(column);
+                byStatement.remove(column);
+            }
+            assertEquals(byInsert, byStatement);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // The path bulkInsert took before: normalize the date and insert() each row
+    private long timeInsertPerRow(ContentValues[] rows) {
+        long start = SystemClock.elapsedRealtime();
+        mDb.beginTransactionNonExclusive();
+        try {
+            for (ContentValues row : rows) {
+                row.put(WeatherEntry.COLUMN_DATE,
+                        WeatherContract.normalizeDate(row.getAsLong(WeatherEntry.COLUMN_DATE)));
+                mDb.insert(WeatherEntry.TABLE_NAME, null, row);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    private long timeCompiledStatement(ContentValues[] rows) {
+        long start = SystemClock.elapsedRealtime();
+        mDb.beginTransactionNonExclusive();
+        try {
+            WeatherRowInserter.insert(mDb, rows);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    private ContentValues[] createRows(int count) {
+        ContentValues[] rows = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            rows[i] = TestUtilities.createWeatherValues(mLocationRowId);
+            rows[i].put(WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE + i * DAY_IN_MILLIS);
+        }
+        return rows;
+    }
+
+    private long countRows() {
+        return DatabaseUtils.queryNumEntries(mDb, WeatherEntry.TABLE_NAME);
+    }
+
+    private void deleteAllRecords() {
+        mDb.delete(WeatherEntry.TABLE_NAME, null, null);
+        mDb.delete(WeatherContract.LocationEntry.TABLE_NAME, null, null);
+    }
+}
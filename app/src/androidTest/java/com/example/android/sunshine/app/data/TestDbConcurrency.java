@@ -0,0 +1,113 @@
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+    Measures how long the forecast list's query takes while a sync is writing, the way the
+    CursorLoader, the widgets and the watch see it.  With write-ahead logging the readers keep
+    going through the sync's transaction instead of queueing behind it.  Latencies are logged
+    under the TestDbConcurrency tag; only whether reads get through at all is asserted, since
+    timings depend on whatever else the device is doing.
+ */
+public class TestDbConcurrency extends AndroidTestCase {
+    private static final String LOG_TAG = TestDbConcurrency.class.getSimpleName();
+
+    // Big enough that the write transaction takes a while on any device
+    private static final int ROWS_TO_WRITE = 5000;
+
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
+    // When the write transaction started and ended, set by the writer thread
+    private volatile long mWriteStart;
+    private volatile long mWriteEnd;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    public void testWriteAheadLoggingIsOn() {
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getReadableDatabase();
+        assertEquals("wal", DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null));
+        db.close();
+    }
+
+    public void testReadersDuringSyncWrite() throws Exception {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        final ContentValues[] days = new ContentValues[ROWS_TO_WRITE];
+        for (int i = 0; i < ROWS_TO_WRITE; i++) {
+            days[i] = TestUtilities.createWeatherValues(locationRowId);
+            days[i].put(WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE + i * DAY_IN_MILLIS);
+        }
+        // A forecast already on screen for the readers to load
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                new ContentValues[]{days[0]});
+
+        final Uri listUri = WeatherEntry.buildWeatherLocationWithStartDate(
+                TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mWriteStart = SystemClock.elapsedRealtime();
+                mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, days);
+                mWriteEnd = SystemClock.elapsedRealtime();
+            }
+        });
+
+        List<Long> latencies = new ArrayList<Long>();
+        int readsDuringWrite = 0;
+        writer.start();
+        while (writer.isAlive()) {
+            long start = SystemClock.elapsedRealtime();
+            Cursor cursor = mContext.getContentResolver().query(listUri, null, null, null,
+                    WeatherEntry.COLUMN_DATE + " ASC");
+            assertNotNull(cursor);
+            // The query only runs when the cursor fills its window
+            cursor.getCount();
+            cursor.close();
+            long end = SystemClock.elapsedRealtime();
+            latencies.add(end - start);
+            if (mWriteStart != 0 && mWriteEnd == 0) {
+                readsDuringWrite++;
+            }
+        }
+        writer.join();
+        assertTrue("Error: Readers should get through while the sync writes",
+                readsDuringWrite > 1);
+
+        long writeMillis = mWriteEnd - mWriteStart;
+        Collections.sort(latencies);
+        long p50 = latencies.get(latencies.size() / 2);
+        long p95 = latencies.get(latencies.size() * 95 / 100);
+        long max = latencies.get(latencies.size() - 1);
+        Log.i(LOG_TAG, ROWS_TO_WRITE + " row write took " + writeMillis + "ms; "
+                + latencies.size() + " reads (" + readsDuringWrite + " during the write), p50 "
+                + p50 + "ms, p95 " + p95 + "ms, max " + max + "ms");
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null,
+                null);
+    }
+}
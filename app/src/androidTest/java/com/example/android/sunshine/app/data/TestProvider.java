@@ -16,20 +16,27 @@
 package com.example.android.sunshine.app.data;
 
 import android.content.ComponentName;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.MetricsEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import java.util.ArrayList;
+
 /*
     Note: This is not a complete set of tests of the Sunshine ContentProvider, but it does test
     that at least the basic functionality has been implemented correctly.
@@ -160,6 +167,12 @@ public class TestProvider extends AndroidTestCase {
         // vnd.android.cursor.dir/com.example.android.sunshine.app/location
         assertEquals("Error: the LocationEntry CONTENT_URI should return LocationEntry.CONTENT_TYPE",
                 LocationEntry.CONTENT_TYPE, type);
+
+        // content://com.example.android.sunshine.app/metrics/
+        type = mContext.getContentResolver().getType(MetricsEntry.CONTENT_URI);
+        // vnd.android.cursor.dir/com.example.android.sunshine.app/metrics
+        assertEquals("Error: the MetricsEntry CONTENT_URI should return MetricsEntry.CONTENT_TYPE",
+                MetricsEntry.CONTENT_TYPE, type);
     }
 
 
@@ -512,4 +525,156 @@ public class TestProvider extends AndroidTestCase {
         }
         cursor.close();
     }
+
+    /*
+        A batch inserting a location and its weather, the weather rows pointing back at the
+        location row, should land in one go and notify the weather observers.  A batch with a
+        failing operation should leave nothing behind.
+     */
+    public void testApplyBatch() throws Exception {
+        String authority = WeatherContract.CONTENT_AUTHORITY;
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValues(TestUtilities.createNorthPoleLocationValues())
+                .build());
+        ContentValues[] weatherValues = createBulkInsertWeatherValues(0);
+        for (ContentValues values : weatherValues) {
+            operations.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                    .withValues(values)
+                    .withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, 0)
+                    .build());
+        }
+
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+        ContentProviderResult[] results = mContext.getContentResolver().applyBatch(authority, operations);
+        weatherObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+
+        assertEquals(operations.size(), results.length);
+        long locationRowId = ContentUris.parseId(results[0].uri);
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry.COLUMN_LOC_KEY},
+                null,
+                null,
+                null
+        );
+        assertEquals("Error: The batch didn't insert all the weather",
+                BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        while (cursor.moveToNext()) {
+            assertEquals(locationRowId, cursor.getLong(0));
+        }
+        cursor.close();
+
+        deleteAllRecords();
+
+        // The update matches no rows, so the batch fails after the insert went through
+        operations.clear();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValues(TestUtilities.createNorthPoleLocationValues())
+                .build());
+        operations.add(ContentProviderOperation.newUpdate(LocationEntry.CONTENT_URI)
+                .withSelection(LocationEntry._ID + " = ?", new String[]{"-1"})
+                .withValue(LocationEntry.COLUMN_CITY_NAME, "Nowhere")
+                .withExpectedCount(1)
+                .build());
+        try {
+            mContext.getContentResolver().applyBatch(authority, operations);
+            fail("Error: The batch should have failed on its update");
+        } catch (OperationApplicationException e) {
+            // expected
+        }
+        cursor = mContext.getContentResolver().query(
+                LocationEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                null
+        );
+        assertEquals("Error: A failed batch should have been rolled back", 0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        Replacing a forecast should store the new days and drop the expired ones in one go,
+        notifying the weather observers once.
+     */
+    public void testReplaceForecast() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues[] days = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                new ContentValues[]{days[0], days[1]});
+
+        // Everything up to the second day has expired; the new window starts on the third
+        ContentValues[] newDays = new ContentValues[days.length - 2];
+        System.arraycopy(days, 2, newDays, 0, newDays.length);
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.EXTRA_DAYS, newDays);
+        extras.putLong(WeatherContract.EXTRA_PRUNE_DATE, WeatherContract.normalizeDate(
+                days[1].getAsLong(WeatherEntry.COLUMN_DATE)));
+
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+        Bundle result = mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_REPLACE_FORECAST, null, extras);
+        weatherObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+
+        assertNotNull(result);
+        assertEquals(newDays.length, result.getInt(WeatherContract.EXTRA_INSERTED));
+        assertEquals(2, result.getInt(WeatherContract.EXTRA_DELETED));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC"
+        );
+        assertEquals("Error: The forecast should hold exactly the new window",
+                newDays.length, cursor.getCount());
+        cursor.moveToFirst();
+        for (int i = 0; i < newDays.length; i++, cursor.moveToNext()) {
+            TestUtilities.validateCurrentRecord("testReplaceForecast.  Error validating day " + i,
+                    cursor, newDays[i]);
+        }
+        cursor.close();
+    }
+
+    /*
+        The metrics table is a ring: once it holds MetricsEntry.MAX_ROWS rows, every insert
+        drops the oldest row.
+     */
+    public void testMetricsRing() {
+        mContext.getContentResolver().delete(MetricsEntry.CONTENT_URI, null, null);
+
+        int extraRows = 10;
+        ContentValues[] metrics = new ContentValues[MetricsEntry.MAX_ROWS + extraRows];
+        for (int i = 0; i < metrics.length; i++) {
+            ContentValues values = new ContentValues();
+            values.put(MetricsEntry.COLUMN_SYNC_TIME, i);
+            values.put(MetricsEntry.COLUMN_PHASE, MetricsEntry.PHASE_SYNC);
+            values.put(MetricsEntry.COLUMN_DURATION, i);
+            metrics[i] = values;
+        }
+        int insertCount = mContext.getContentResolver().bulkInsert(MetricsEntry.CONTENT_URI, metrics);
+        assertEquals(metrics.length, insertCount);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                MetricsEntry.CONTENT_URI,
+                new String[]{MetricsEntry.COLUMN_SYNC_TIME},
+                null,
+                null,
+                MetricsEntry.COLUMN_SYNC_TIME + " ASC"
+        );
+        assertEquals("Error: the metrics table grew past its bound",
+                MetricsEntry.MAX_ROWS, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: the oldest metrics should have been dropped first",
+                extraRows, cursor.getLong(0));
+        cursor.close();
+
+        mContext.getContentResolver().delete(MetricsEntry.CONTENT_URI, null, null);
+    }
 }
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.utils.StubHttpServer;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Runs the sync adapter's fetch path against a local stub server to check that cache
+    validators are sent back to the server, and that a 304 Not Modified leaves the database alone.
+ */
+public class TestConditionalSync extends AndroidTestCase {
+
+    static final String TEST_LOCATION = "99705";
+    static final String TEST_ETAG = "\"forecast-v1\"";
+    static final int TEST_DAYS = 3;
+
+    private StubHttpServer mServer;
+    private URL mUrl;
+
+    // Answers 304 whenever the client presents the ETag we handed out, and a full forecast
+    // otherwise.
+    private final StubHttpServer.Handler mHandler = new StubHttpServer.Handler() {
+        @Override
+        public StubHttpServer.Response handle(StubHttpServer.Request request) {
+            if (TEST_ETAG.equals(request.headers.get("if-none-match"))) {
+                return new StubHttpServer.Response(HttpURLConnection.HTTP_NOT_MODIFIED, new byte[0])
+                        .header("ETag", TEST_ETAG);
+            }
+            return new StubHttpServer.Response(HttpURLConnection.HTTP_OK, createForecastJson(TEST_DAYS))
+                    .header("Content-Type", "application/json")
+                    .header("ETag", TEST_ETAG);
+        }
+    };
+
+    static byte[] createForecastJson(int days) {
+        StringBuilder json = new StringBuilder()
+                .append("{\"cod\":\"200\",\"city\":{\"name\":\"North Pole\",")
+                .append("\"coord\":{\"lat\":64.7488,\"lon\":-147.353}},\"list\":[");
+        for (int i = 0; i < days; i++) {
+            if (i > 0) json.append(',');
+            json.append("{\"pressure\":1.3,\"humidity\":12,\"speed\":5.5,\"deg\":1.1,")
+                    .append("\"temp\":{\"min\":65,\"max\":75},")
+                    .append("\"weather\":[{\"id\":321,\"main\":\"Asteroids\"}]}");
+        }
+        json.append("]}");
+        return json.toString().getBytes();
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+
+        mServer = new StubHttpServer(mHandler);
+        mServer.start();
+        mUrl = mServer.getUrl("/data/2.5/forecast/daily?q=" + TEST_LOCATION);
+        new ForecastValidatorStore(mContext).clear(mUrl);
+        // A breaker left open by an earlier test or outage would fail every fetch fast
+        ForecastCircuitBreaker.getInstance(mContext).reset();
+        // Whatever earlier syncs left of the persisted quota shouldn't decide the outcome
+        ApiQuotaLimiter.getInstance(mContext).reset();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        new ForecastValidatorStore(mContext).clear(mUrl);
+        ForecastCircuitBreaker.getInstance(mContext).reset();
+        ApiQuotaLimiter.getInstance(mContext).reset();
+        super.tearDown();
+    }
+
+    public void testNotModifiedSkipsDatabaseWrites() throws Exception {
+        SunshineSyncAdapter adapter = new SunshineSyncAdapter(mContext, false);
+
+        // The first sync has no validators, so it is unconditional and stores the forecast
+        SyncResult firstResult = new SyncResult();
+        adapter.syncForecast(mUrl, TEST_LOCATION, firstResult);
+        assertEquals("Error: First sync did not store the forecast",
+                TEST_DAYS, countWeatherRows());
+        assertEquals(TEST_DAYS, firstResult.stats.numInserts);
+        List<Long> rowIds = getWeatherRowIds();
+
+        SyncResult notModifiedResult = new SyncResult();
+        adapter.syncForecast(mUrl, TEST_LOCATION, notModifiedResult);
+        assertEquals("Error: A 304 response inserted rows",
+                0, notModifiedResult.stats.numInserts);
+        assertEquals("Error: A 304 response updated rows",
+                0, notModifiedResult.stats.numUpdates);
+        assertEquals("Error: A 304 response rewrote the stored forecast",
+                rowIds, getWeatherRowIds());
+
+        List<StubHttpServer.Request> requests = mServer.getRequests();
+        assertEquals(2, requests.size());
+        assertNull("Error: First request should have been unconditional",
+                requests.get(0).headers.get("if-none-match"));
+        assertEquals("Error: Second request did not send the stored ETag",
+                TEST_ETAG, requests.get(1).headers.get("if-none-match"));
+        assertEquals("Error: 304 response changed the stored forecast",
+                TEST_DAYS, countWeatherRows());
+    }
+
+    /**
+     * @return the _IDs of the test location's weather rows, which change if they are rewritten
+     */
+    private List<Long> getWeatherRowIds() {
+        Uri uri = WeatherContract.WeatherEntry.buildWeatherLocation(TEST_LOCATION);
+        Cursor cursor = mContext.getContentResolver().query(uri,
+                new String[]{WeatherContract.WeatherEntry.TABLE_NAME + "."
+                        + WeatherContract.WeatherEntry._ID},
+                null, null, null);
+        assertNotNull(cursor);
+        List<Long> ids = new ArrayList<Long>();
+        while (cursor.moveToNext()) {
+            ids.add(cursor.getLong(0));
+        }
+        cursor.close();
+        return ids;
+    }
+
+    private int countWeatherRows() {
+        Uri uri = WeatherContract.WeatherEntry.buildWeatherLocation(TEST_LOCATION);
+        Cursor cursor = mContext.getContentResolver().query(uri, null, null, null, null);
+        assertNotNull(cursor);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.SharedPreferences;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.utils.ForecastStandInServer;
+
+import java.util.Map;
+
+/*
+    A load-test harness for the sync adapter.  Every test runs full syncs of N saved locations
+    through onPerformSync against a local stand-in for OpenWeatherMap, so throughput and the
+    handling of slow and failing servers can be measured without touching the real API.
+    Timings are logged under the TestSyncLoad tag.
+ */
+public class TestSyncLoad extends AndroidTestCase {
+    private static final String LOG_TAG = TestSyncLoad.class.getSimpleName();
+
+    // Far more requests than the real API key allows a minute
+    private static final int LOAD_TEST_QUOTA = 100000;
+
+    private ForecastStandInServer mServer;
+    private Account mAccount;
+    private String mAuthority;
+    private Map<String, ?> mSavedPreferences;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mAuthority = mContext.getString(R.string.content_authority);
+
+        // Keep the system from starting real syncs into the same database while we measure
+        mAccount = SunshineSyncAdapter.getSyncAccount(mContext);
+        ContentResolver.setSyncAutomatically(mAccount, mAuthority, false);
+        ContentResolver.cancelSync(mAccount, mAuthority);
+
+        mSavedPreferences = PreferenceManager.getDefaultSharedPreferences(mContext).getAll();
+        deleteAllRecords();
+        ForecastCircuitBreaker.getInstance(mContext).reset();
+        ApiQuotaLimiter.getInstance(mContext).reset(LOAD_TEST_QUOTA);
+
+        mServer = new ForecastStandInServer(42);
+        mServer.start();
+        SunshineSyncAdapter.setForecastBaseUrl(mServer.getBaseUrl());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SunshineSyncAdapter.setForecastBaseUrl(null);
+        SunshineSyncAdapter.setForecastGroupUrl(null);
+        mServer.shutdown();
+        ForecastCircuitBreaker.getInstance(mContext).reset();
+        ApiQuotaLimiter.getInstance(mContext).reset();
+        deleteAllRecords();
+        restorePreferences();
+        ContentResolver.setSyncAutomatically(mAccount, mAuthority, true);
+        super.tearDown();
+    }
+
+    public void testSyncThroughput() throws Exception {
+        for (int cities : new int[]{1, 10, 25}) {
+            deleteAllRecords();
+            addCities(cities);
+            int requestsBefore = mServer.getRequestCount();
+            SyncTrafficStats trafficStats = new SyncTrafficStats(mContext);
+            long downloadsBefore = trafficStats.getDownloadCount();
+            long wireBytesBefore = trafficStats.getTotalWireBytes();
+
+            long cold = sync(new SyncResult());
+            assertEquals("Error: Every city should be fetched exactly once",
+                    cities, mServer.getRequestCount() - requestsBefore);
+            assertEquals("Error: Every download should be counted",
+                    cities, trafficStats.getDownloadCount() - downloadsBefore);
+            assertTrue("Error: Downloads should add to the bytes on the wire",
+                    trafficStats.getTotalWireBytes() > wireBytesBefore);
+            assertEquals("Error: Every city's forecast should be stored",
+                    cities * 14, countWeatherRows());
+
+            // Same bodies again, which the content hash should stop before they are parsed
+            SyncResult unchangedResult = new SyncResult();
+            long unchanged = sync(unchangedResult);
+            assertEquals(0, unchangedResult.stats.numInserts);
+
+            mServer.changeForecasts();
+            long changed = sync(new SyncResult());
+
+            Log.i(LOG_TAG, cities + " cities: cold " + cold + "ms, unchanged " + unchanged
+                    + "ms, changed " + changed + "ms ("
+                    + (cities * 1000L / Math.max(1, cold)) + " cities/s cold)");
+        }
+    }
+
+    public void testBatchedVersusPerCity() throws Exception {
+        final long latency = 100;
+        mServer.setLatency(latency);
+        for (int cities : new int[]{1, 5, 10, 25, 50}) {
+            deleteAllRecords();
+            addCities(cities);
+            // The first sync learns the id of the city in the settings
+            sync(new SyncResult());
+
+            mServer.changeForecasts();
+            long perCity = sync(new SyncResult());
+
+            mServer.changeForecasts();
+            SunshineSyncAdapter.setForecastGroupUrl(mServer.getGroupUrl());
+            int groupsBefore = mServer.getGroupRequestCount();
+            int requestsBefore = mServer.getRequestCount();
+            SyncResult batchedResult = new SyncResult();
+            long batched = sync(batchedResult);
+            SunshineSyncAdapter.setForecastGroupUrl(null);
+
+            int groups = mServer.getGroupRequestCount() - groupsBefore;
+            Log.i(LOG_TAG, cities + " cities with " + latency + "ms latency: per-city "
+                    + perCity + "ms, batched " + batched + "ms in " + groups + " group(s), "
+                    + (mServer.getRequestCount() - requestsBefore) + " request(s)");
+            // A lone city isn't worth a group request
+            assertEquals((cities + 19) / 20 - (cities == 1 ? 1 : 0), groups);
+            assertEquals("Error: Batched sync should store every city's new forecast",
+                    cities * 14, batchedResult.stats.numInserts);
+        }
+    }
+
+    public void testSlowServer() throws Exception {
+        final int cities = 8;
+        final long latency = 200;
+        addCities(cities);
+        mServer.setLatency(latency);
+        mServer.setDrip(256, 20);
+
+        long elapsed = sync(new SyncResult());
+        int peak = mServer.getPeakConcurrentRequests();
+        Log.i(LOG_TAG, cities + " cities with " + latency + "ms latency and a dripped body: "
+                + elapsed + "ms, at most " + peak + " requests at once");
+        assertEquals("Error: A slow server should still deliver every forecast",
+                cities * 14, countWeatherRows());
+        assertTrue("Error: Slow fetches should overlap rather than run one after another",
+                peak > 1);
+    }
+
+    public void testConnectionsAreReused() throws Exception {
+        final int cities = 25;
+        addCities(cities);
+
+        sync(new SyncResult());
+        int requests = mServer.getRequestCount();
+        int connections = mServer.getConnectionCount();
+        Log.i(LOG_TAG, requests + " requests over " + connections + " connections");
+        assertEquals("Error: Every city's forecast should be stored",
+                cities * 14, countWeatherRows());
+        assertTrue("Error: Connections should go back to the pool and be reused, "
+                + requests + " requests took " + connections + " connections",
+                connections < requests);
+    }
+
+    public void testServerErrorsAreRetried() throws Exception {
+        // Few enough failures that the circuit stays closed
+        final int cities = 1;
+        addCities(cities);
+        mServer.setFaultRates(0, 1, 0);
+
+        SyncResult syncResult = new SyncResult();
+        sync(syncResult);
+        assertEquals("Error: Each city should be tried the maximum number of times",
+                cities * SyncRetryPolicy.MAX_ATTEMPTS, mServer.getRequestCount());
+        assertEquals(cities, syncResult.stats.numIoExceptions);
+        assertTrue("Error: A failed sync should push the next one back",
+                syncResult.delayUntil > 0);
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN,
+                Utility.getLocationStatus(mContext, cityName(0)));
+    }
+
+    public void testCircuitOpensWhileServerIsDown() throws Exception {
+        final int cities = 10;
+        addCities(cities);
+        mServer.setFaultRates(0, 1, 0);
+
+        SyncResult syncResult = new SyncResult();
+        sync(syncResult);
+        int requests = mServer.getRequestCount();
+        assertTrue("Error: Fetches should stop once the circuit opens, made " + requests,
+                requests < cities * SyncRetryPolicy.MAX_ATTEMPTS);
+        assertEquals(ForecastCircuitBreaker.STATE_OPEN, ForecastCircuitBreaker.getState(mContext));
+        assertTrue("Error: The next sync should wait for the circuit to let a probe through",
+                syncResult.delayUntil * 1000 >= System.currentTimeMillis()
+                        + ForecastCircuitBreaker.OPEN_MILLIS - 60 * 1000);
+
+        // While the circuit is open a sync fails fast, without a single connection
+        syncResult = new SyncResult();
+        long elapsed = sync(syncResult);
+        assertEquals("Error: An open circuit should keep every request from the server",
+                requests, mServer.getRequestCount());
+        Log.i(LOG_TAG, "Sync with the circuit open took " + elapsed + "ms");
+    }
+
+    public void testNotFoundIsNotRetried() throws Exception {
+        addCities(1);
+        mServer.setFaultRates(1, 0, 0);
+
+        SyncResult syncResult = new SyncResult();
+        sync(syncResult);
+        assertEquals("Error: An unknown city should not be retried",
+                1, mServer.getRequestCount());
+        assertFalse(syncResult.hasError());
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_INVALID,
+                Utility.getLocationStatus(mContext, cityName(0)));
+    }
+
+    public void testMalformedCodIsAParseFailure() throws Exception {
+        addCities(1);
+        mServer.setFaultRates(0, 0, 1);
+
+        SyncResult syncResult = new SyncResult();
+        sync(syncResult);
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(1, syncResult.stats.numParseExceptions);
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID,
+                Utility.getLocationStatus(mContext, cityName(0)));
+        assertEquals(0, countWeatherRows());
+    }
+
+    public void testMixedFailures() throws Exception {
+        final int cities = 20;
+        addCities(cities);
+        mServer.setFaultRates(0.1, 0.1, 0.1);
+
+        SyncResult syncResult = new SyncResult();
+        long elapsed = sync(syncResult);
+        Log.i(LOG_TAG, cities + " cities with 30% faults: " + elapsed + "ms, "
+                + mServer.getRequestCount() + " requests, " + mServer.getFaultCount()
+                + " faults, " + syncResult.stats.numIoExceptions + " io errors, "
+                + syncResult.stats.numParseExceptions + " parse errors, "
+                + countWeatherRows() / 14 + " cities stored");
+        assertTrue(mServer.getRequestCount() >= cities);
+    }
+
+    public void testPrefetchSyncsAreCounted() throws Exception {
+        final int cities = 3;
+        addCities(cities);
+        PrefetchStats stats = new PrefetchStats(mContext);
+        long opportunisticSyncs = stats.getOpportunisticSyncs();
+        long opportunisticFetches = stats.getOpportunisticFetches();
+        long forcedSyncs = stats.getForcedSyncs();
+
+        Bundle extras = new Bundle();
+        extras.putBoolean(SunshineSyncAdapter.SYNC_EXTRAS_PREFETCH, true);
+        sync(extras, new SyncResult());
+        assertEquals(opportunisticSyncs + 1, stats.getOpportunisticSyncs());
+        assertEquals(opportunisticFetches + cities, stats.getOpportunisticFetches());
+
+        sync(new SyncResult());
+        assertEquals("Error: A periodic sync should count as forced",
+                forcedSyncs + 1, stats.getForcedSyncs());
+        assertEquals(opportunisticSyncs + 1, stats.getOpportunisticSyncs());
+    }
+
+    public void testAliasesAreFetchedOnce() throws Exception {
+        addCities(2);
+        // Another name for city 1, which OWM resolved to the same place
+        ContentValues alias = new ContentValues();
+        alias.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, "Alias of " + cityName(1));
+        alias.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName(1));
+        alias.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, 7.0 - 70.0);
+        alias.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, 13.0 - 180.0);
+        alias.put(WeatherContract.LocationEntry.COLUMN_CITY_ID,
+                ForecastStandInServer.getCityId(7.0 - 70.0, 13.0 - 180.0));
+        mContext.getContentResolver().insert(WeatherContract.LocationEntry.CONTENT_URI, alias);
+
+        sync(new SyncResult());
+        assertEquals("Error: Two names for the same city should share one fetch",
+                2, mServer.getRequestCount());
+        assertEquals("Error: The alias should get the forecast too",
+                3 * 14, countWeatherRows());
+    }
+
+    /**
+     * Makes city 0 the location in the settings and saves the rest, turning on the syncing of
+     * saved locations so one sync fetches them all.
+     */
+    private void addCities(int count) {
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putString(mContext.getString(R.string.pref_location_key), cityName(0))
+                .remove(mContext.getString(R.string.pref_location_latitude))
+                .remove(mContext.getString(R.string.pref_location_longitude))
+                .putBoolean(mContext.getString(R.string.pref_sync_all_locations_key), true)
+                .commit();
+
+        for (int i = 1; i < count; i++) {
+            ContentValues values = new ContentValues();
+            values.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, cityName(i));
+            values.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName(i));
+            // Spread the cities over the globe; the stand-in answers for any coordinates
+            double latitude = (i * 7) % 140 - 70.0;
+            double longitude = (i * 13) % 360 - 180.0;
+            values.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, latitude);
+            values.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, longitude);
+            values.put(WeatherContract.LocationEntry.COLUMN_CITY_ID,
+                    ForecastStandInServer.getCityId(latitude, longitude));
+            mContext.getContentResolver().insert(
+                    WeatherContract.LocationEntry.CONTENT_URI, values);
+        }
+    }
+
+    private static String cityName(int i) {
+        return "City " + i;
+    }
+
+    /**
+     * @return how long the sync took, in milliseconds
+     */
+    private long sync(SyncResult syncResult) {
+        return sync(new Bundle(), syncResult);
+    }
+
+    /**
+     * @return how long the sync took, in milliseconds
+     */
+    private long sync(Bundle extras, SyncResult syncResult) {
+        SunshineSyncAdapter adapter = new SunshineSyncAdapter(mContext, false);
+        long start = SystemClock.elapsedRealtime();
+        adapter.onPerformSync(mAccount, extras, mAuthority, null, syncResult);
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    private int countWeatherRows() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI, null, null, null, null);
+        assertNotNull(cursor);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private void restorePreferences() {
+        SharedPreferences.Editor editor =
+                PreferenceManager.getDefaultSharedPreferences(mContext).edit().clear();
+        for (Map.Entry<String, ?> entry : mSavedPreferences.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof String) {
+                editor.putString(entry.getKey(), (String) value);
+            } else if (value instanceof Boolean) {
+                editor.putBoolean(entry.getKey(), (Boolean) value);
+            } else if (value instanceof Integer) {
+                editor.putInt(entry.getKey(), (Integer) value);
+            } else if (value instanceof Long) {
+                editor.putLong(entry.getKey(), (Long) value);
+            } else if (value instanceof Float) {
+                editor.putFloat(entry.getKey(), (Float) value);
+            }
+        }
+        editor.commit();
+    }
+}
@@ -0,0 +1,485 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stand-in for OpenWeatherMap's forecast/daily endpoint, bound to the loopback interface, so
+ * the sync adapter can be load tested without spending the real API key's quota.
+ *
+ * Any city asked for, by q or by lat and lon, gets a synthetic forecast that is the same every
+ * time it is asked for, until {@link #changeForecasts()} is called.  Requests can be made slow
+ * with a fixed latency before the response and a body that drips out in small chunks, and a
+ * fraction of them can be made to fail with a 404, a 503, or a body whose cod isn't a number.
+ * Unlike StubHttpServer, connections are served in parallel and kept alive between requests,
+ * as the real server would, and the stand-in counts them so tests can see whether the client
+ * reuses its connections.
+ *
+ * OWM has no multi-city daily forecast, but the stand-in does: {@link #GROUP_PATH} takes a
+ * comma-separated list of city ids, as OWM's current weather group call does, and answers
+ * with a "list" of single-city responses.  It knows the ids of cities asked for by name
+ * before, and of any coordinates, whose ids it derives from them.
+ */
+public class ForecastStandInServer {
+    public static final String FORECAST_PATH = "/data/2.5/forecast/daily";
+    public static final String GROUP_PATH = FORECAST_PATH + "/group";
+
+    // Ids from coordinates start here, clear of the ids of cities asked for by name
+    private static final long COORD_ID_BASE = 1L << 40;
+    private static final long COORD_ID_LONGITUDES = 3600001;
+
+    private static final int DEFAULT_DAYS = 7;
+    // How long a kept-alive connection may sit idle before the stand-in drops it
+    private static final int IDLE_TIMEOUT_MILLIS = 5 * 1000;
+
+    // A spread of OWM weather ids, so every icon and art lookup gets exercised
+    private static final int[] WEATHER_IDS = {
+            211, 301, 502, 511, 521, 601, 741, 800, 801, 803
+    };
+    private static final String[] WEATHER_DESCRIPTIONS = {
+            "Storm", "Drizzle", "Rain", "Freezing Rain", "Showers", "Snow", "Fog", "Clear",
+            "Light Clouds", "Clouds"
+    };
+
+    // A thread per connection, since idle kept-alive connections hold theirs
+    private final ExecutorService mConnectionExecutor = Executors.newCachedThreadPool();
+    private final Set<Socket> mOpenSockets =
+            Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mFaultCount = new AtomicInteger();
+    private final AtomicInteger mGroupRequestCount = new AtomicInteger();
+    private final AtomicInteger mActiveRequestCount = new AtomicInteger();
+    private final AtomicInteger mPeakActiveRequestCount = new AtomicInteger();
+    // City id -> name, for the cities asked for by name
+    private final Map<Long, String> mNamedCities = new ConcurrentHashMap<Long, String>();
+
+    private final Random mFaultRandom;
+    private ServerSocket mServerSocket;
+    private Thread mAcceptThread;
+
+    private volatile long mLatencyMillis;
+    private volatile int mDripChunkBytes;
+    private volatile long mDripIntervalMillis;
+    private volatile double mNotFoundRate;
+    private volatile double mServerErrorRate;
+    private volatile double mMalformedCodRate;
+    private volatile int mForecastVersion;
+
+    /**
+     * @param seed seeds the choice of which requests fail, so a run can be repeated
+     */
+    public ForecastStandInServer(long seed) {
+        mFaultRandom = new Random(seed);
+    }
+
+    public void start() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mAcceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!mServerSocket.isClosed()) {
+                    try {
+                        final Socket socket = mServerSocket.accept();
+                        mConnectionCount.incrementAndGet();
+                        mOpenSockets.add(socket);
+                        mConnectionExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    serve(socket);
+                                } catch (IOException e) {
+                                    // The client went away, maybe on purpose after a timeout
+                                } catch (InterruptedException e) {
+                                    // shutdown() is stopping the server
+                                } finally {
+                                    mOpenSockets.remove(socket);
+                                    try {
+                                        socket.close();
+                                    } catch (IOException e) {
+                                        // Nothing more to do with it
+                                    }
+                                }
+                            }
+                        });
+                    } catch (IOException e) {
+                        // The socket was closed by shutdown()
+                    }
+                }
+            }
+        }, "ForecastStandInServer");
+        mAcceptThread.start();
+    }
+
+    public void shutdown() throws IOException, InterruptedException {
+        mServerSocket.close();
+        mAcceptThread.join();
+        // Kept-alive connections are blocked reading the next request; closing them ends that
+        for (Socket socket : mOpenSockets) {
+            socket.close();
+        }
+        mConnectionExecutor.shutdownNow();
+    }
+
+    /**
+     * @return the forecast endpoint, in the form the sync adapter appends its query to
+     */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + FORECAST_PATH + "?";
+    }
+
+    /**
+     * @return the multi-city endpoint, in the form the sync adapter appends its query to
+     */
+    public String getGroupUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + GROUP_PATH + "?";
+    }
+
+    /**
+     * @return the id the stand-in gives the city at the given coordinates
+     */
+    public static long getCityId(double latitude, double longitude) {
+        long lat = Math.round((latitude + 90) * 10000);
+        long lon = Math.round((longitude + 180) * 10000);
+        return COORD_ID_BASE + lat * COORD_ID_LONGITUDES + lon;
+    }
+
+    /**
+     * Waits before sending each response's headers, as a distant server would.
+     */
+    public void setLatency(long latencyMillis) {
+        mLatencyMillis = latencyMillis;
+    }
+
+    /**
+     * Sends each response body a chunk at a time, pausing between chunks.
+     *
+     * @param chunkBytes the bytes to send at once, or 0 to send the body in one go
+     */
+    public void setDrip(int chunkBytes, long intervalMillis) {
+        mDripChunkBytes = chunkBytes;
+        mDripIntervalMillis = intervalMillis;
+    }
+
+    /**
+     * Sets the fraction of requests, from 0 to 1, answered with each kind of failure.  The
+     * rates add up, so they should total no more than 1.
+     *
+     * @param notFoundRate answered with a 404 and OWM's "city not found" body
+     * @param serverErrorRate answered with a 503 and no body
+     * @param malformedCodRate answered with a 200 whose body has a cod that isn't a number
+     */
+    public void setFaultRates(double notFoundRate, double serverErrorRate,
+                              double malformedCodRate) {
+        mNotFoundRate = notFoundRate;
+        mServerErrorRate = serverErrorRate;
+        mMalformedCodRate = malformedCodRate;
+    }
+
+    /**
+     * Changes every city's forecast, as happens when OWM publishes a new run.
+     */
+    public void changeForecasts() {
+        mForecastVersion++;
+    }
+
+    /**
+     * @return the number of forecast requests received so far, single-city and group
+     */
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * @return the number of connections accepted so far; fewer than the requests means the
+     *         client reused some
+     */
+    public int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    /**
+     * @return the most requests the stand-in has been answering at the same time
+     */
+    public int getPeakConcurrentRequests() {
+        return mPeakActiveRequestCount.get();
+    }
+
+    /**
+     * @return the number of group requests received so far
+     */
+    public int getGroupRequestCount() {
+        return mGroupRequestCount.get();
+    }
+
+    /**
+     * @return the number of requests that were answered with an injected failure
+     */
+    public int getFaultCount() {
+        return mFaultCount.get();
+    }
+
+    private void serve(Socket socket) throws IOException, InterruptedException {
+        socket.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+        OutputStream out = socket.getOutputStream();
+        while (serveRequest(in, out)) {
+            // Keep answering on this connection until the client closes it
+        }
+    }
+
+    /**
+     * Reads one request off the connection and answers it.
+     *
+     * @return true if the connection should be kept open for another request
+     */
+    private boolean serveRequest(BufferedReader in, OutputStream out)
+            throws IOException, InterruptedException {
+        String requestLine = in.readLine();
+        if (requestLine == null) {
+            return false;
+        }
+        String target = requestLine.split(" ")[1];
+        boolean keepAlive = true;
+        String line;
+        while ((line = in.readLine()) != null && line.length() > 0) {
+            // Other than asking to close the connection, the headers don't change the answer
+            if (line.toLowerCase(Locale.US).matches("connection:\\s*close\\s*")) {
+                keepAlive = false;
+            }
+        }
+
+        int active = mActiveRequestCount.incrementAndGet();
+        int peak;
+        while (active > (peak = mPeakActiveRequestCount.get())
+                && !mPeakActiveRequestCount.compareAndSet(peak, active)) {
+            // Another request raised the peak first; look again
+        }
+        try {
+            respond(target, out);
+        } finally {
+            mActiveRequestCount.decrementAndGet();
+        }
+        return keepAlive;
+    }
+
+    private void respond(String target, OutputStream out)
+            throws IOException, InterruptedException {
+        int code;
+        byte[] body;
+        int query = target.indexOf('?');
+        String path = query >= 0 ? target.substring(0, query) : target;
+        boolean group = GROUP_PATH.equals(path);
+        if (!FORECAST_PATH.equals(path) && !group) {
+            code = HttpURLConnection.HTTP_NOT_FOUND;
+            body = new byte[0];
+        } else {
+            mRequestCount.incrementAndGet();
+            if (group) {
+                mGroupRequestCount.incrementAndGet();
+            }
+            Map<String, String> params =
+                    parseQuery(query >= 0 ? target.substring(query + 1) : "");
+            double fault;
+            synchronized (mFaultRandom) {
+                fault = mFaultRandom.nextDouble();
+            }
+            if (fault < mNotFoundRate) {
+                mFaultCount.incrementAndGet();
+                code = HttpURLConnection.HTTP_NOT_FOUND;
+                body = "{\"cod\":\"404\",\"message\":\"city not found\"}".getBytes("UTF-8");
+            } else if (fault < mNotFoundRate + mServerErrorRate) {
+                mFaultCount.incrementAndGet();
+                code = HttpURLConnection.HTTP_UNAVAILABLE;
+                body = new byte[0];
+            } else if (fault < mNotFoundRate + mServerErrorRate + mMalformedCodRate) {
+                mFaultCount.incrementAndGet();
+                code = HttpURLConnection.HTTP_OK;
+                body = createResponseJson(group, params, "\"ok\"").getBytes("UTF-8");
+            } else {
+                code = HttpURLConnection.HTTP_OK;
+                body = createResponseJson(group, params, "\"200\"").getBytes("UTF-8");
+            }
+        }
+
+        if (mLatencyMillis > 0) {
+            Thread.sleep(mLatencyMillis);
+        }
+        String head = "HTTP/1.1 " + code + " StandIn\r\n"
+                + "Content-Type: application/json; charset=utf-8\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + (keepAlive ? "" : "Connection: close\r\n")
+                + "\r\n";
+        out.write(head.getBytes("ISO-8859-1"));
+        out.flush();
+
+        int chunk = mDripChunkBytes > 0 ? mDripChunkBytes : body.length;
+        for (int offset = 0; offset < body.length; offset += chunk) {
+            if (offset > 0) {
+                Thread.sleep(mDripIntervalMillis);
+            }
+            out.write(body, offset, Math.min(chunk, body.length - offset));
+            out.flush();
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) throws IOException {
+        Map<String, String> params = new HashMap<String, String>();
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    private String createResponseJson(boolean group, Map<String, String> params, String cod) {
+        if (!group) {
+            return createForecastJson(params, cod);
+        }
+        List<String> forecasts = new ArrayList<String>();
+        String ids = params.get("id");
+        for (String id : ids != null ? ids.split(",") : new String[0]) {
+            Map<String, String> cityParams = getCityParams(Long.parseLong(id.trim()));
+            // Like OWM's group call, leave out the cities we don't know
+            if (cityParams != null) {
+                if (params.containsKey("cnt")) {
+                    cityParams.put("cnt", params.get("cnt"));
+                }
+                forecasts.add(createForecastJson(cityParams, cod));
+            }
+        }
+        StringBuilder json = new StringBuilder()
+                .append("{\"cnt\":").append(forecasts.size()).append(",\"list\":[");
+        for (int i = 0; i < forecasts.size(); i++) {
+            if (i > 0) json.append(',');
+            json.append(forecasts.get(i));
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * @return the query that asks for the city with the given id on its own, or null if the
+     *         id isn't one we gave out
+     */
+    private Map<String, String> getCityParams(long cityId) {
+        Map<String, String> params = new HashMap<String, String>();
+        String name = mNamedCities.get(cityId);
+        if (name != null) {
+            params.put("q", name);
+        } else if (cityId >= COORD_ID_BASE) {
+            long coords = cityId - COORD_ID_BASE;
+            params.put("lat", Double.toString(coords / COORD_ID_LONGITUDES / 10000.0 - 90));
+            params.put("lon", Double.toString(coords % COORD_ID_LONGITUDES / 10000.0 - 180));
+        } else {
+            return null;
+        }
+        return params;
+    }
+
+    /**
+     * Builds a forecast for the city in the query.  The weather is drawn from a generator
+     * seeded by the city and the forecast version, so it only changes when asked to.
+     */
+    private String createForecastJson(Map<String, String> params, String cod) {
+        String name = params.get("q");
+        long cityId;
+        double lat;
+        double lon;
+        if (name == null) {
+            lat = parseDouble(params.get("lat"));
+            lon = parseDouble(params.get("lon"));
+            name = String.format(Locale.US, "%.4f,%.4f", lat, lon);
+            cityId = getCityId(lat, lon);
+        } else {
+            // Put a named city somewhere plausible, and always in the same place
+            Random place = new Random(name.hashCode());
+            lat = place.nextDouble() * 140 - 70;
+            lon = place.nextDouble() * 360 - 180;
+            cityId = name.hashCode() & 0x7fffffff;
+            mNamedCities.put(cityId, name);
+        }
+        int days = DEFAULT_DAYS;
+        if (params.containsKey("cnt")) {
+            days = Integer.parseInt(params.get("cnt"));
+        }
+
+        Random weather = new Random(name.hashCode() * 31L + mForecastVersion);
+        StringBuilder json = new StringBuilder(days * 256)
+                .append("{\"cod\":").append(cod).append(",\"message\":0.01,\"city\":{")
+                .append("\"id\":").append(cityId)
+                .append(",\"name\":\"").append(name.replace("\"", "")).append("\",")
+                .append(String.format(Locale.US, "\"coord\":{\"lon\":%.4f,\"lat\":%.4f},",
+                        lon, lat))
+                .append("\"country\":\"XX\",\"population\":0},")
+                .append("\"cnt\":").append(days).append(",\"list\":[");
+        for (int i = 0; i < days; i++) {
+            if (i > 0) json.append(',');
+            int condition = weather.nextInt(WEATHER_IDS.length);
+            double min = weather.nextDouble() * 30 - 5;
+            double max = min + weather.nextDouble() * 12;
+            json.append(String.format(Locale.US,
+                    "{\"dt\":%d,\"temp\":{\"day\":%.2f,\"min\":%.2f,\"max\":%.2f,"
+                            + "\"night\":%.2f,\"eve\":%.2f,\"morn\":%.2f},"
+                            + "\"pressure\":%.2f,\"humidity\":%d,"
+                            + "\"weather\":[{\"id\":%d,\"main\":\"%s\","
+                            + "\"description\":\"%s\",\"icon\":\"01d\"}],"
+                            + "\"speed\":%.2f,\"deg\":%d,\"clouds\":%d}",
+                    1419076800L + i * 86400L, max, min, max, min, max, min,
+                    980 + weather.nextDouble() * 50, weather.nextInt(100),
+                    WEATHER_IDS[condition], WEATHER_DESCRIPTIONS[condition],
+                    WEATHER_DESCRIPTIONS[condition].toLowerCase(Locale.US),
+                    weather.nextDouble() * 15, weather.nextInt(360), weather.nextInt(100)));
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    private static double parseDouble(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
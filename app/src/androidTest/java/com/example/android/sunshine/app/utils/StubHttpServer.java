@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A tiny single-threaded HTTP/1.1 server bound to the loopback interface, for exercising the
+ * network code against canned responses.  Every request it receives is recorded so tests can
+ * check what the client sent.
+ */
+public class StubHttpServer {
+
+    /** A request as seen by the server.  Header names are lower-cased. */
+    public static class Request {
+        public final String path;
+        public final Map<String, String> headers = new HashMap<String, String>();
+
+        Request(String path) {
+            this.path = path;
+        }
+    }
+
+    /** A canned response.  The body may be empty. */
+    public static class Response {
+        public final int code;
+        public final Map<String, String> headers = new LinkedHashMap<String, String>();
+        public final byte[] body;
+
+        public Response(int code, byte[] body) {
+            this.code = code;
+            this.body = body;
+        }
+
+        public Response header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+    }
+
+    public interface Handler {
+        Response handle(Request request);
+    }
+
+    private final Handler mHandler;
+    private final List<Request> mRequests = new ArrayList<Request>();
+    private ServerSocket mServerSocket;
+    private Thread mThread;
+
+    public StubHttpServer(Handler handler) {
+        mHandler = handler;
+    }
+
+    public void start() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!mServerSocket.isClosed()) {
+                    try {
+                        Socket socket = mServerSocket.accept();
+                        try {
+                            serve(socket);
+                        } finally {
+                            socket.close();
+                        }
+                    } catch (IOException e) {
+                        // The socket was closed by shutdown(), or the client went away.
+                    }
+                }
+            }
+        }, "StubHttpServer");
+        mThread.start();
+    }
+
+    public void shutdown() throws IOException, InterruptedException {
+        mServerSocket.close();
+        mThread.join();
+    }
+
+    public URL getUrl(String path) throws IOException {
+        return new URL("http", "127.0.0.1", mServerSocket.getLocalPort(), path);
+    }
+
+    public synchronized List<Request> getRequests() {
+        return new ArrayList<Request>(mRequests);
+    }
+
+    private void serve(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+        String requestLine = in.readLine();
+        if (requestLine == null) {
+            return;
+        }
+        Request request = new Request(requestLine.split(" ")[1]);
+        String line;
+        while ((line = in.readLine()) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                request.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                        line.substring(colon + 1).trim());
+            }
+        }
+        synchronized (this) {
+            mRequests.add(request);
+        }
+
+        Response response = mHandler.handle(request);
+        StringBuilder head = new StringBuilder()
+                .append("HTTP/1.1 ").append(response.code).append(" Stub\r\n")
+                .append("Content-Length: ").append(response.body.length).append("\r\n")
+                .append("Connection: close\r\n");
+        for (Map.Entry<String, String> header : response.headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        head.append("\r\n");
+
+        OutputStream out = socket.getOutputStream();
+        out.write(head.toString().getBytes("ISO-8859-1"));
+        out.write(response.body);
+        out.flush();
+    }
+}
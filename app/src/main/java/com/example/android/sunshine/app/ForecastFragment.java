@@ -26,6 +26,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.support.design.widget.AppBarLayout;
+import android.support.design.widget.Snackbar;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.CursorLoader;
@@ -33,6 +34,7 @@ import android.support.v4.content.Loader;
 import android.support.v4.view.ViewCompat;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
+import android.text.format.DateUtils;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -46,6 +48,7 @@ import android.widget.AbsListView;
 import android.widget.TextView;
 
 import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.sync.ForecastCircuitBreaker;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 
 /**
@@ -59,6 +62,7 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
     private int mChoiceMode;
     private boolean mHoldForTransition;
     private long mInitialSelectedDate = -1;
+    private Snackbar mStaleForecastBar;
 
     private static final String SELECTED_KEY = "selected_position";
 
@@ -403,12 +407,18 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         use to determine why they aren't seeing weather.
      */
     private void updateEmptyView() {
+        updateStaleForecastBar();
         if ( mForecastAdapter.getItemCount() == 0 ) {
             TextView tv = (TextView) getView().findViewById(R.id.recyclerview_forecast_empty);
             if ( null != tv ) {
                 // if cursor is empty, why? do we have an invalid location
                 int message = R.string.empty_forecast_list;
                 @SunshineSyncAdapter.LocationStatus int location = Utility.getLocationStatus(getActivity());
+                if (ForecastCircuitBreaker.getState(getActivity())
+                        != ForecastCircuitBreaker.STATE_CLOSED) {
+                    // The sync is skipping the server until it comes back
+                    location = SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+                }
                 switch (location) {
                     case SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN:
                         message = R.string.empty_forecast_list_server_down;
@@ -429,9 +439,36 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         }
     }
 
+    /*
+        While the server is down there's no new forecast coming, so rather than leave the
+        user waiting on one, say how old the forecast on screen is.
+     */
+    private void updateStaleForecastBar() {
+        long lastSuccess = ForecastCircuitBreaker.getLastSuccessTime(getActivity());
+        boolean stale = mForecastAdapter.getItemCount() > 0 && lastSuccess > 0
+                && ForecastCircuitBreaker.getState(getActivity())
+                        != ForecastCircuitBreaker.STATE_CLOSED;
+        if (!stale) {
+            if (null != mStaleForecastBar) {
+                mStaleForecastBar.dismiss();
+                mStaleForecastBar = null;
+            }
+            return;
+        }
+        String message = getString(R.string.forecast_list_stale,
+                DateUtils.getRelativeTimeSpanString(lastSuccess));
+        if (null == mStaleForecastBar) {
+            mStaleForecastBar = Snackbar.make(mRecyclerView, message, Snackbar.LENGTH_INDEFINITE);
+            mStaleForecastBar.show();
+        } else {
+            mStaleForecastBar.setText(message);
+        }
+    }
+
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-        if (key.equals(getString(R.string.pref_location_status_key))) {
+        if (key.equals(getString(R.string.pref_location_status_key))
+                || key.equals(getString(R.string.pref_circuit_state_key))) {
             updateEmptyView();
         }
     }
@@ -0,0 +1,93 @@
+package com.example.android.sunshine.app.data;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/**
+ * Hands today's forecast for the preferred location from the sync to everything that shows
+ * it.
+ *
+ * After a sync, the notification, the Today widget, Muzei and the watch each used to query
+ * the provider for the same row.  Now the sync publishes the row it has just parsed and they
+ * read it from here.  Only when nothing has been published in this process, or what was is
+ * for another location or day, does a read fall back to the provider, and the row it reads
+ * is kept for the next reader.
+ */
+public class ForecastBus {
+
+    private static final String[] TODAY_PROJECTION = {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_DATE = 0;
+    private static final int INDEX_WEATHER_ID = 1;
+    private static final int INDEX_SHORT_DESC = 2;
+    private static final int INDEX_MAX_TEMP = 3;
+    private static final int INDEX_MIN_TEMP = 4;
+
+    private static volatile ForecastSnapshot sToday;
+
+    /**
+     * Publish the first day of a freshly stored forecast.
+     */
+    public static void publish(ForecastSnapshot today) {
+        sToday = today;
+    }
+
+    /**
+     * Today's forecast for the preferred location.  This may query the provider, so don't
+     * call it on the UI thread.
+     *
+     * @return the forecast, or null if none is stored
+     */
+    public static ForecastSnapshot getToday(Context context) {
+        String locationSetting = Utility.getPreferredLocation(context);
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+
+        ForecastSnapshot snapshot = sToday;
+        if (snapshot != null && snapshot.date == today
+                && snapshot.locationSetting.equals(locationSetting)) {
+            return snapshot;
+        }
+
+        snapshot = queryToday(context, locationSetting);
+        if (snapshot != null && snapshot.date == today) {
+            sToday = snapshot;
+        }
+        return snapshot;
+    }
+
+    private static ForecastSnapshot queryToday(Context context, String locationSetting) {
+        Cursor cursor = context.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithStartDate(
+                        locationSetting, System.currentTimeMillis()),
+                TODAY_PROJECTION,
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            return new ForecastSnapshot(locationSetting,
+                    cursor.getLong(INDEX_DATE),
+                    cursor.getInt(INDEX_WEATHER_ID),
+                    cursor.getString(INDEX_SHORT_DESC),
+                    cursor.getDouble(INDEX_MAX_TEMP),
+                    cursor.getDouble(INDEX_MIN_TEMP));
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.example.android.sunshine.app.data;
+
+/**
+ * An immutable copy of one location's forecast for one day: what the notification, the
+ * widgets, Muzei and the watch show.
+ */
+public final class ForecastSnapshot {
+    public final String locationSetting;
+    // Normalized date, in milliseconds since the epoch
+    public final long date;
+    public final int weatherId;
+    public final String shortDesc;
+    // Temperatures are metric, as stored; format them with Utility.formatTemperature
+    public final double maxTemp;
+    public final double minTemp;
+
+    public ForecastSnapshot(String locationSetting, long date, int weatherId, String shortDesc,
+                            double maxTemp, double minTemp) {
+        this.locationSetting = locationSetting;
+        this.date = date;
+        this.weatherId = weatherId;
+        this.shortDesc = shortDesc;
+        this.maxTemp = maxTemp;
+        this.minTemp = minTemp;
+    }
+}
@@ -19,7 +19,8 @@ import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
-import android.text.format.Time;
+
+import com.example.android.sunshine.core.ForecastDates;
 
 /**
  * Defines table and column names for the weather database.
@@ -43,15 +44,27 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_METRICS = "metrics";
+
+    // Method for ContentResolver.call that checkpoints the database's write-ahead log.  The
+    // sync calls it once it's done writing.
+    public static final String METHOD_CHECKPOINT = "checkpoint";
+
+    // Method for ContentResolver.call that replaces a location's forecast in one transaction.
+    // It stores the weather rows in EXTRA_DAYS, then deletes every day up to EXTRA_PRUNE_DATE
+    // for all locations.  Weather observers are notified once, and only if a row changed.
+    // The returned Bundle holds EXTRA_INSERTED and EXTRA_DELETED.
+    public static final String METHOD_REPLACE_FORECAST = "replace_forecast";
+    public static final String EXTRA_DAYS = "days";
+    public static final String EXTRA_PRUNE_DATE = "prune_date";
+    public static final String EXTRA_INSERTED = "inserted";
+    public static final String EXTRA_DELETED = "deleted";
 
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
     public static long normalizeDate(long startDate) {
-        // normalize the start date to the beginning of the (UTC) day
-        Time time = new Time();
-        time.set(startDate);
-        int julianDay = Time.getJulianDay(startDate, time.gmtoff);
-        return time.setJulianDay(julianDay);
+        // normalize the start date to the beginning of the day
+        return ForecastDates.normalizeDate(startDate);
     }
 
     /* Inner class that defines the table contents of the location table */
@@ -81,6 +94,10 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // The id openweathermap gave the city.  Different location settings, say a zip code
+        // and a city name, can resolve to the same city; this is how the sync tells.
+        public static final String COLUMN_CITY_ID = "city_id";
+
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -165,4 +182,52 @@ public class WeatherContract {
                 return 0;
         }
     }
+
+    /* Inner class that defines the table contents of the sync metrics table */
+    public static final class MetricsEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_METRICS).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_METRICS;
+
+        public static final String TABLE_NAME = "sync_metrics";
+
+        // The table is a ring: inserting beyond this many rows drops the oldest ones
+        public static final int MAX_ROWS = 1000;
+
+        // Wall clock time the sync started, in milliseconds since the epoch.  Every row of one
+        // sync has the same value.
+        public static final String COLUMN_SYNC_TIME = "sync_time";
+
+        // The location the timing applies to, or null for whole-sync phases
+        public static final String COLUMN_LOCATION_SETTING = "location_setting";
+
+        // One of the PHASE_ values below
+        public static final String COLUMN_PHASE = "phase";
+
+        // How long the phase took, in milliseconds
+        public static final String COLUMN_DURATION = "duration";
+
+        // Bytes moved by the phase, where that means something (0 otherwise)
+        public static final String COLUMN_BYTES = "bytes";
+
+        // Phases of a location's fetch
+        public static final String PHASE_DNS = "dns";
+        public static final String PHASE_CONNECT = "connect";
+        public static final String PHASE_FIRST_BYTE = "first_byte";
+        // Reading the body; for a group fetch this includes parsing it as it streams in
+        public static final String PHASE_DOWNLOAD = "download";
+        public static final String PHASE_PARSE = "parse";
+
+        // Phases of a location's commit
+        public static final String PHASE_REPLACE_FORECAST = "replace_forecast";
+
+        // Post-sync consumers, and the sync as a whole
+        public static final String PHASE_UPDATE_WIDGETS = "update_widgets";
+        public static final String PHASE_UPDATE_MUZEI = "update_muzei";
+        public static final String PHASE_NOTIFY_WEATHER = "notify_weather";
+        public static final String PHASE_SYNC = "sync";
+    }
 }
@@ -16,36 +16,71 @@
 package com.example.android.sunshine.app.data;
 
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.MetricsEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
 /**
  * Manages a local database for weather data.
+ *
+ * The database runs in write-ahead logging mode.  The sync's writes go to the log on the one
+ * writer connection, while the list, the widgets and the watch read from a pool of connections
+ * of their own without waiting for the sync's transaction to end.
  */
 public class WeatherDbHelper extends SQLiteOpenHelper {
 
     // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 4;
 
     static final String DATABASE_NAME = "weather.db";
 
+    // Pages the log may grow to before a commit copies it back into the database.  A sync
+    // writes a few dozen rows, so this is several syncs' worth while still keeping the log,
+    // which every reader has to search, well below SQLite's default of 1000 pages.
+    static final int WAL_AUTOCHECKPOINT_PAGES = 256;
+
     public WeatherDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // The pragma answers with the new setting, so it has to be run as a query
+        DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint=" + WAL_AUTOCHECKPOINT_PAGES,
+                null);
+    }
+
+    /**
+     * Copy as much of the log back into the database as readers allow, without waiting on any
+     * of them.  Worth doing after a sync has written, while nothing else is.
+     */
+    static void checkpoint(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
     }
 
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
         // Create a table to hold locations.  A location consists of the string supplied in the
-        // location setting, the city name, and the latitude and longitude
+        // location setting, the city name, the latitude and longitude, and the city's id
         final String SQL_CREATE_LOCATION_TABLE = "CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
                 LocationEntry._ID + " INTEGER PRIMARY KEY," +
                 LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
                 LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
                 LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
+                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+                LocationEntry.COLUMN_CITY_ID + " INTEGER NOT NULL DEFAULT 0 " +
                 " );";
 
         final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
@@ -79,8 +114,28 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
                 WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
 
+        final String SQL_CREATE_METRICS_TABLE = "CREATE TABLE " + MetricsEntry.TABLE_NAME + " (" +
+                // AUTOINCREMENT keeps ids growing after old rows are dropped, which is what
+                // the trigger below relies on to find the oldest ones
+                MetricsEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                MetricsEntry.COLUMN_SYNC_TIME + " INTEGER NOT NULL, " +
+                MetricsEntry.COLUMN_LOCATION_SETTING + " TEXT, " +
+                MetricsEntry.COLUMN_PHASE + " TEXT NOT NULL, " +
+                MetricsEntry.COLUMN_DURATION + " INTEGER NOT NULL, " +
+                MetricsEntry.COLUMN_BYTES + " INTEGER NOT NULL DEFAULT 0" +
+                " );";
+
+        // Keep the metrics table a bounded ring by dropping the oldest rows on every insert
+        final String SQL_CREATE_METRICS_RING_TRIGGER = "CREATE TRIGGER " +
+                MetricsEntry.TABLE_NAME + "_ring AFTER INSERT ON " + MetricsEntry.TABLE_NAME +
+                " BEGIN DELETE FROM " + MetricsEntry.TABLE_NAME +
+                " WHERE " + MetricsEntry._ID + " <= NEW." + MetricsEntry._ID +
+                " - " + MetricsEntry.MAX_ROWS + "; END;";
+
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_METRICS_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_METRICS_RING_TRIGGER);
     }
 
     @Override
@@ -93,6 +148,7 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
         // should be your top priority before modifying this method.
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + MetricsEntry.TABLE_NAME);
         onCreate(sqLiteDatabase);
     }
 }
@@ -17,12 +17,22 @@ package com.example.android.sunshine.app.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcelable;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 public class WeatherProvider extends ContentProvider {
 
@@ -30,10 +40,15 @@ public class WeatherProvider extends ContentProvider {
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
 
+    // The URIs to notify once the batch being applied on this thread commits, or null when
+    // no batch is
+    private final ThreadLocal<Set<Uri>> mBatchNotifications = new ThreadLocal<Set<Uri>>();
+
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
     static final int LOCATION = 300;
+    static final int METRICS = 400;
 
     private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
 
@@ -130,6 +145,7 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_METRICS, METRICS);
         return matcher;
     }
 
@@ -164,6 +180,8 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case METRICS:
+                return WeatherContract.MetricsEntry.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -213,6 +231,19 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "metrics"
+            case METRICS: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.MetricsEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -248,10 +279,21 @@ public class WeatherProvider extends ContentProvider {
                     throw new android.database.SQLException("Failed to insert row into " + uri);
                 break;
             }
+            case METRICS: {
+                long _id = db.insert(WeatherContract.MetricsEntry.TABLE_NAME, null, values);
+                if ( _id > 0 )
+                    returnUri = ContentUris.withAppendedId(uri, _id);
+                else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                break;
+            }
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        // Metrics aren't watched live; see bulkInsert
+        if (match != METRICS) {
+            notifyChange(uri);
+        }
         return returnUri;
     }
 
@@ -271,12 +313,16 @@ public class WeatherProvider extends ContentProvider {
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
                 break;
+            case METRICS:
+                rowsDeleted = db.delete(
+                        WeatherContract.MetricsEntry.TABLE_NAME, selection, selectionArgs);
+                break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Because a null deletes all rows
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return rowsDeleted;
     }
@@ -310,7 +356,7 @@ public class WeatherProvider extends ContentProvider {
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return rowsUpdated;
     }
@@ -321,27 +367,128 @@ public class WeatherProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case WEATHER:
-                db.beginTransaction();
-                int returnCount = 0;
+                // Deferred rather than exclusive, as write-ahead logging wants
+                db.beginTransactionNonExclusive();
+                int returnCount;
+                try {
+                    returnCount = WeatherRowInserter.insert(db, values);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                notifyChange(uri);
+                return returnCount;
+            case METRICS:
+                // One transaction for all of a sync's timings
+                db.beginTransactionNonExclusive();
+                int metricsCount = 0;
                 try {
                     for (ContentValues value : values) {
-                        normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
+                        long _id = db.insert(WeatherContract.MetricsEntry.TABLE_NAME, null, value);
                         if (_id != -1) {
-                            returnCount++;
+                            metricsCount++;
                         }
                     }
                     db.setTransactionSuccessful();
                 } finally {
                     db.endTransaction();
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
-                return returnCount;
+                // No notification: nothing watches the metrics live, and observers of the
+                // whole authority shouldn't wake up for every sync's timings
+                return metricsCount;
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    /**
+     * Apply the operations in one transaction: all of them or, if one fails, none.  Observers
+     * hear about each URI the batch changed once, after it commits, instead of once for every
+     * operation.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Set<Uri> notifications = new LinkedHashSet<Uri>();
+        ContentProviderResult[] results;
+        mBatchNotifications.set(notifications);
+        db.beginTransactionNonExclusive();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mBatchNotifications.remove();
+        }
+        for (Uri uri : notifications) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        return results;
+    }
+
+    /**
+     * Tell observers the data at the URI changed, or, while a batch is being applied, once it
+     * has been.
+     */
+    private void notifyChange(Uri uri) {
+        Set<Uri> batchNotifications = mBatchNotifications.get();
+        if (batchNotifications != null) {
+            batchNotifications.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (WeatherContract.METHOD_CHECKPOINT.equals(method)) {
+            WeatherDbHelper.checkpoint(mOpenHelper.getWritableDatabase());
+            return null;
+        } else if (WeatherContract.METHOD_REPLACE_FORECAST.equals(method)) {
+            return replaceForecast(extras);
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Store the new days and prune the expired ones in the same transaction, so readers never
+     * see one without the other, and reload once instead of once per step.
+     */
+    private Bundle replaceForecast(Bundle extras) {
+        // Across processes the array comes back as Parcelable[], whatever was put in
+        Parcelable[] parcelables = extras.getParcelableArray(WeatherContract.EXTRA_DAYS);
+        ContentValues[] days = new ContentValues[parcelables == null ? 0 : parcelables.length];
+        for (int i = 0; i < days.length; i++) {
+            days[i] = (ContentValues) parcelables[i];
+        }
+
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int inserted;
+        int deleted = 0;
+        db.beginTransactionNonExclusive();
+        try {
+            inserted = WeatherRowInserter.insert(db, days);
+            if (extras.containsKey(WeatherContract.EXTRA_PRUNE_DATE)) {
+                deleted = db.delete(WeatherContract.WeatherEntry.TABLE_NAME,
+                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
+                        new String[]{Long.toString(
+                                extras.getLong(WeatherContract.EXTRA_PRUNE_DATE))});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (inserted + deleted > 0) {
+            notifyChange(WeatherContract.WeatherEntry.CONTENT_URI);
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(WeatherContract.EXTRA_INSERTED, inserted);
+        result.putInt(WeatherContract.EXTRA_DELETED, deleted);
+        return result;
+    }
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
@@ -0,0 +1,144 @@
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.core.ForecastDates;
+
+import java.util.Calendar;
+
+/**
+ * Inserts weather rows through one compiled INSERT statement, bound by position, instead of
+ * having SQLiteDatabase.insert build and compile the SQL again from each row's ContentValues.
+ * Dates are normalized with one Calendar for the whole batch.
+ *
+ * Rows come in exactly as they would go to insert(): the UNIQUE(date, location_id)
+ * ON CONFLICT REPLACE constraint still replaces existing days, and a row that breaks a
+ * constraint is skipped rather than failing the batch.
+ */
+final class WeatherRowInserter {
+    private static final String LOG_TAG = WeatherRowInserter.class.getSimpleName();
+
+    // The columns in the order they are bound
+    private static final String[] COLUMNS = {
+            WeatherEntry.COLUMN_LOC_KEY,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    // these indices must match COLUMNS, plus one: statement arguments count from 1
+    private static final int BIND_LOC_KEY = 1;
+    private static final int BIND_DATE = 2;
+    private static final int BIND_SHORT_DESC = 3;
+    private static final int BIND_WEATHER_ID = 4;
+    private static final int BIND_FIRST_REAL = 5;
+
+    private static final String SQL_INSERT = buildInsertSql();
+
+    private WeatherRowInserter() {
+    }
+
+    private static String buildInsertSql() {
+        StringBuilder sql = new StringBuilder("INSERT INTO ")
+                .append(WeatherEntry.TABLE_NAME).append(" (");
+        StringBuilder args = new StringBuilder();
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (i > 0) {
+                sql.append(", ");
+                args.append(", ");
+            }
+            sql.append(COLUMNS[i]);
+            args.append('?');
+        }
+        return sql.append(") VALUES (").append(args).append(')').toString();
+    }
+
+    /**
+     * Insert the rows.  Must be called inside a transaction; a statement executed outside one
+     * commits on its own, and the speed-up is gone.
+     *
+     * @return the number of rows inserted
+     */
+    static int insert(SQLiteDatabase db, ContentValues[] values) {
+        int count = 0;
+        Calendar calendar = Calendar.getInstance();
+        SQLiteStatement statement = db.compileStatement(SQL_INSERT);
+        try {
+            for (ContentValues value : values) {
+                if (!bind(statement, value, calendar)) {
+                    // Columns the statement doesn't have; let insert() deal with it
+                    if (db.insert(WeatherEntry.TABLE_NAME, null, value) != -1) {
+                        count++;
+                    }
+                    continue;
+                }
+                try {
+                    if (statement.executeInsert() != -1) {
+                        count++;
+                    }
+                } catch (SQLException e) {
+                    // insert() would have logged this and returned -1
+                    Log.e(LOG_TAG, "Error inserting " + value, e);
+                }
+            }
+        } finally {
+            statement.close();
+        }
+        return count;
+    }
+
+    /**
+     * Bind one row, normalizing its date.
+     *
+     * @return false if the row has columns the statement doesn't bind
+     */
+    private static boolean bind(SQLiteStatement statement, ContentValues value,
+                                Calendar calendar) {
+        int bound = 0;
+        statement.clearBindings();
+
+        Long locationId = value.getAsLong(WeatherEntry.COLUMN_LOC_KEY);
+        if (locationId != null) {
+            statement.bindLong(BIND_LOC_KEY, locationId);
+            bound++;
+        }
+        Long date = value.getAsLong(WeatherEntry.COLUMN_DATE);
+        if (date != null) {
+            long normalizedDate = ForecastDates.normalizeDate(date, calendar);
+            // Write it back, as the provider always has; callers in this process may compare
+            // their values with what was stored
+            value.put(WeatherEntry.COLUMN_DATE, normalizedDate);
+            statement.bindLong(BIND_DATE, normalizedDate);
+            bound++;
+        }
+        String shortDesc = value.getAsString(WeatherEntry.COLUMN_SHORT_DESC);
+        if (shortDesc != null) {
+            statement.bindString(BIND_SHORT_DESC, shortDesc);
+            bound++;
+        }
+        Long weatherId = value.getAsLong(WeatherEntry.COLUMN_WEATHER_ID);
+        if (weatherId != null) {
+            statement.bindLong(BIND_WEATHER_ID, weatherId);
+            bound++;
+        }
+        for (int i = BIND_FIRST_REAL; i <= COLUMNS.length; i++) {
+            Double real = value.getAsDouble(COLUMNS[i - 1]);
+            if (real != null) {
+                statement.bindDouble(i, real);
+                bound++;
+            }
+        }
+        return bound == value.size();
+    }
+}
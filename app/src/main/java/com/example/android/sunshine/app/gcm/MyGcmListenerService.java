@@ -29,6 +29,7 @@ import android.widget.Toast;
 
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 import com.google.android.gms.gcm.GcmListenerService;
 
 import org.json.JSONException;
@@ -70,6 +71,9 @@ public class MyGcmListenerService extends GcmListenerService {
                     String alert =
                             String.format(getString(R.string.gcm_weather_alert), weather, location);
                     sendNotification(alert);
+                    // The alert means the forecast we have is out of date.  Nobody asked for
+                    // it, though, so it only gets the quota the user can spare.
+                    SunshineSyncAdapter.syncInBackground(this);
                 } catch (JSONException e) {
                     // JSON parsing failed, so we just let this message go, since GCM is not one
                     // of our critical features.
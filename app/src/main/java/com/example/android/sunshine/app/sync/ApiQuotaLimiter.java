@@ -0,0 +1,195 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.support.annotation.IntDef;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * A token bucket holding the OpenWeatherMap API key's request budget, which every request to
+ * OWM has to take a token from.
+ *
+ * The free plan allows 60 calls a minute, so the bucket holds 60 tokens and refills one a
+ * second.  The bucket lives in preferences, so the budget is shared by every sync, whatever
+ * started it, and survives the process being killed between them.
+ *
+ * Requests come in two lanes.  A user lane request, from a refresh the user asked for, may
+ * take the last tokens and will wait a few seconds for a refill.  A background lane request
+ * never waits, leaves RESERVED_FOR_USER tokens untouched, and gives way entirely while a user
+ * request is waiting.
+ */
+public class ApiQuotaLimiter {
+    private static final String LOG_TAG = ApiQuotaLimiter.class.getSimpleName();
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({LANE_USER, LANE_BACKGROUND})
+    public @interface Lane {}
+
+    public static final int LANE_USER = 0;
+    public static final int LANE_BACKGROUND = 1;
+
+    private static final String PREFS_NAME = "api_quota";
+    private static final String KEY_TOKENS = "tokens";
+    private static final String KEY_UPDATED_AT = "updated_at";
+    private static final String KEY_DENIED_USER = "denied_user";
+    private static final String KEY_DENIED_BACKGROUND = "denied_background";
+
+    static final int CAPACITY = 60;
+    private static final long REFILL_INTERVAL_MILLIS = 1000;
+
+    // Tokens the background lane leaves for the user
+    static final int RESERVED_FOR_USER = 10;
+
+    // How long a user lane request waits for a token before giving up
+    private static final long MAX_USER_WAIT_MILLIS = 5 * 1000;
+
+    private static ApiQuotaLimiter sInstance;
+
+    private final SharedPreferences mPrefs;
+    private int mWaitingUserRequests;
+    // CAPACITY, except in load tests that make more requests than the real key allows
+    private int mCapacity = CAPACITY;
+
+    public static synchronized ApiQuotaLimiter getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ApiQuotaLimiter(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ApiQuotaLimiter(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Take a token for one request to the API.  Blocks for a few seconds at most, and only in
+     * the user lane.
+     *
+     * @return true if the request may be made, false if the lane is out of quota
+     */
+    boolean acquire(@Lane int lane) {
+        if (lane == LANE_BACKGROUND) {
+            synchronized (this) {
+                if (mWaitingUserRequests == 0 && take(RESERVED_FOR_USER) == 0) {
+                    return true;
+                }
+                deny(KEY_DENIED_BACKGROUND);
+                return false;
+            }
+        }
+
+        synchronized (this) {
+            mWaitingUserRequests++;
+        }
+        try {
+            long deadline = SystemClock.elapsedRealtime() + MAX_USER_WAIT_MILLIS;
+            while (true) {
+                long wait;
+                synchronized (this) {
+                    wait = take(0);
+                    if (wait == 0) {
+                        return true;
+                    }
+                    if (SystemClock.elapsedRealtime() + wait > deadline) {
+                        deny(KEY_DENIED_USER);
+                        return false;
+                    }
+                }
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        } finally {
+            synchronized (this) {
+                mWaitingUserRequests--;
+            }
+        }
+    }
+
+    /**
+     * @return how long until the background lane has a token again, in milliseconds
+     */
+    synchronized long getBackgroundWaitMillis() {
+        double tokens = refill();
+        double missing = RESERVED_FOR_USER + 1 - tokens;
+        return missing <= 0 ? 0 : (long) Math.ceil(missing * REFILL_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @return the tokens left in the bucket
+     */
+    public synchronized int getTokens() {
+        return (int) refill();
+    }
+
+    /**
+     * @return the number of requests turned away in the lane
+     */
+    public long getDeniedCount(@Lane int lane) {
+        return mPrefs.getLong(lane == LANE_USER ? KEY_DENIED_USER : KEY_DENIED_BACKGROUND, 0);
+    }
+
+    /**
+     * Fill the bucket and forget the denials, for tests.
+     */
+    @VisibleForTesting
+    void reset() {
+        reset(CAPACITY);
+    }
+
+    /**
+     * Fill the bucket to a capacity other than the real key's, for tests that make more
+     * requests than it allows.  reset() puts the real capacity back.
+     */
+    @VisibleForTesting
+    synchronized void reset(int capacity) {
+        mCapacity = capacity;
+        mPrefs.edit().clear().apply();
+    }
+
+    /**
+     * Take a token if there are more than the given number left.  Must hold the lock.
+     *
+     * @return 0 if a token was taken, otherwise how long until there will be one
+     */
+    private long take(int reserve) {
+        double tokens = refill();
+        if (tokens >= reserve + 1) {
+            save(tokens - 1);
+            return 0;
+        }
+        return (long) Math.ceil((reserve + 1 - tokens) * REFILL_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @return the tokens in the bucket now, counting those added since it was last saved
+     */
+    private double refill() {
+        long now = System.currentTimeMillis();
+        long updatedAt = mPrefs.getLong(KEY_UPDATED_AT, 0);
+        double tokens = mPrefs.getFloat(KEY_TOKENS, mCapacity);
+        // The wall clock can go backwards; don't let that drain the bucket
+        long elapsed = Math.max(0, now - updatedAt);
+        return Math.min(mCapacity, tokens + (double) elapsed / REFILL_INTERVAL_MILLIS);
+    }
+
+    private void save(double tokens) {
+        mPrefs.edit()
+                .putFloat(KEY_TOKENS, (float) tokens)
+                .putLong(KEY_UPDATED_AT, System.currentTimeMillis())
+                .apply();
+    }
+
+    private void deny(String key) {
+        Log.d(LOG_TAG, "Out of API quota, " + key);
+        mPrefs.edit().putLong(key, mPrefs.getLong(key, 0) + 1).apply();
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream that counts the bytes read through it.
+ */
+class CountingInputStream extends FilterInputStream {
+    private long mCount;
+
+    CountingInputStream(InputStream in) {
+        super(in);
+    }
+
+    /**
+     * @return the number of bytes read so far.
+     */
+    long getCount() {
+        return mCount;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int result = super.read();
+        if (result != -1) {
+            mCount++;
+        }
+        return result;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        int result = super.read(buffer, offset, count);
+        if (result != -1) {
+            mCount += result;
+        }
+        return result;
+    }
+
+    @Override
+    public long skip(long byteCount) throws IOException {
+        long result = super.skip(byteCount);
+        mCount += result;
+        return result;
+    }
+
+    @Override
+    public boolean markSupported() {
+        // Re-reading after a reset would count the same bytes twice.
+        return false;
+    }
+}
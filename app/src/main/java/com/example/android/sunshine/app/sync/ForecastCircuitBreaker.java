@@ -0,0 +1,187 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.support.annotation.IntDef;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Stops us calling the forecast server while it is known to be down.
+ *
+ * The circuit starts closed and every request goes through.  After FAILURE_THRESHOLD requests
+ * in a row fail with an IO error or a 5xx, it opens: requests fail straight away, without a
+ * connection, until OPEN_MILLIS have passed.  Then it goes half open and lets a single probe
+ * through.  If the probe gets an answer the circuit closes again, otherwise it opens for
+ * another OPEN_MILLIS.
+ *
+ * The state is kept in the default shared preferences, next to the location status, so the UI
+ * can watch it.  The rest lives in a preference file of its own, so an open circuit stays open
+ * when the process is killed between syncs.
+ */
+public class ForecastCircuitBreaker {
+    private static final String LOG_TAG = ForecastCircuitBreaker.class.getSimpleName();
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({STATE_CLOSED, STATE_OPEN, STATE_HALF_OPEN})
+    public @interface State {}
+
+    public static final int STATE_CLOSED = 0;
+    public static final int STATE_OPEN = 1;
+    public static final int STATE_HALF_OPEN = 2;
+
+    private static final String PREFS_NAME = "forecast_circuit_breaker";
+    private static final String KEY_CONSECUTIVE_FAILURES = "consecutive_failures";
+    private static final String KEY_OPENED_AT = "opened_at";
+    private static final String KEY_LAST_SUCCESS = "last_success";
+
+    static final int FAILURE_THRESHOLD = 5;
+    static final long OPEN_MILLIS = 5 * 60 * 1000;
+
+    private static ForecastCircuitBreaker sInstance;
+
+    private final SharedPreferences mPrefs;
+    private final SharedPreferences mDefaultPrefs;
+    private final String mStateKey;
+
+    // Whether the probe of the half open circuit is out; a probe lost with the process that
+    // made it doesn't hold the circuit half open forever
+    private boolean mProbeInFlight;
+
+    public static synchronized ForecastCircuitBreaker getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ForecastCircuitBreaker(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ForecastCircuitBreaker(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mDefaultPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        mStateKey = context.getString(R.string.pref_circuit_state_key);
+    }
+
+    /**
+     * @return the state of the circuit, as last saved by a sync
+     */
+    @SuppressWarnings("ResourceType")
+    public static @State int getState(Context c) {
+        return PreferenceManager.getDefaultSharedPreferences(c)
+                .getInt(c.getString(R.string.pref_circuit_state_key), STATE_CLOSED);
+    }
+
+    /**
+     * @return when the server last answered a request, in milliseconds since the epoch, or 0
+     *         if it never has
+     */
+    public static long getLastSuccessTime(Context c) {
+        return c.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getLong(KEY_LAST_SUCCESS, 0);
+    }
+
+    /**
+     * Ask whether a request may go to the server.  A caller that gets true must report the
+     * outcome with {@link #onSuccess()}, {@link #onFailure()} or {@link #onCancelled()}.
+     */
+    synchronized boolean allowRequest() {
+        switch (getState()) {
+            case STATE_OPEN:
+                if (System.currentTimeMillis() < getProbeTime()) {
+                    return false;
+                }
+                Log.d(LOG_TAG, "Circuit half open, probing the server");
+                setState(STATE_HALF_OPEN);
+                mProbeInFlight = true;
+                return true;
+            case STATE_HALF_OPEN:
+                if (mProbeInFlight) {
+                    return false;
+                }
+                mProbeInFlight = true;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Records that the server answered, whatever the answer was.
+     */
+    synchronized void onSuccess() {
+        mProbeInFlight = false;
+        SharedPreferences.Editor editor = mPrefs.edit()
+                .putLong(KEY_LAST_SUCCESS, System.currentTimeMillis());
+        if (mPrefs.getInt(KEY_CONSECUTIVE_FAILURES, 0) != 0) {
+            editor.putInt(KEY_CONSECUTIVE_FAILURES, 0);
+        }
+        editor.apply();
+        if (getState() != STATE_CLOSED) {
+            Log.d(LOG_TAG, "Circuit closed, the server is answering again");
+            setState(STATE_CLOSED);
+        }
+    }
+
+    /**
+     * Records that a request allowed through was never made after all.
+     */
+    synchronized void onCancelled() {
+        mProbeInFlight = false;
+    }
+
+    /**
+     * Records a request that failed with an IO error or a 5xx.
+     */
+    synchronized void onFailure() {
+        mProbeInFlight = false;
+        int failures = mPrefs.getInt(KEY_CONSECUTIVE_FAILURES, 0) + 1;
+        SharedPreferences.Editor editor = mPrefs.edit()
+                .putInt(KEY_CONSECUTIVE_FAILURES, failures);
+        // Requests let through before the circuit opened can still fail after it has; they
+        // don't push the probe back
+        int state = getState();
+        boolean open = state == STATE_HALF_OPEN
+                || (state == STATE_CLOSED && failures >= FAILURE_THRESHOLD);
+        if (open) {
+            editor.putLong(KEY_OPENED_AT, System.currentTimeMillis());
+        }
+        editor.apply();
+        if (open) {
+            Log.d(LOG_TAG, "Circuit open after " + failures + " failures");
+            setState(STATE_OPEN);
+        }
+    }
+
+    /**
+     * @return when a request will next be let through, in milliseconds since the epoch; now
+     *         if the circuit is closed
+     */
+    synchronized long getProbeTime() {
+        if (getState() == STATE_CLOSED) {
+            return System.currentTimeMillis();
+        }
+        return mPrefs.getLong(KEY_OPENED_AT, 0) + OPEN_MILLIS;
+    }
+
+    /**
+     * Close the circuit and forget the failures, for tests.
+     */
+    synchronized void reset() {
+        mProbeInFlight = false;
+        mPrefs.edit().clear().apply();
+        setState(STATE_CLOSED);
+    }
+
+    @SuppressWarnings("ResourceType")
+    private @State int getState() {
+        return mDefaultPrefs.getInt(mStateKey, STATE_CLOSED);
+    }
+
+    private void setState(@State int state) {
+        mDefaultPrefs.edit().putInt(mStateKey, state).apply();
+    }
+}
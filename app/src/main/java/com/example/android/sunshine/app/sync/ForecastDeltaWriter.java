@@ -0,0 +1,157 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.SyncStats;
+import android.database.Cursor;
+import android.os.Bundle;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a freshly parsed forecast for one location, skipping the days that are already stored
+ * with identical values.
+ *
+ * The weather table's UNIQUE(date, location_id) ON CONFLICT REPLACE constraint turns every
+ * insert of an existing day into a delete plus an insert, and every bulkInsert notifies all
+ * weather observers.  Most syncs change only a handful of days, often none, so comparing with
+ * what we already have first saves both the writes and the reloads they trigger.
+ *
+ * The changed days go to the provider's replace_forecast method together with the prune date.
+ * One transaction stores them and drops the expired days, and observers are notified once.
+ */
+class ForecastDeltaWriter {
+
+    // The columns compared to decide whether a stored day has changed
+    private static final String[] COMPARED_COLUMNS = {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_DATE = 0;
+    private static final int INDEX_SHORT_DESC = 1;
+    private static final int INDEX_WEATHER_ID = 2;
+    private static final int INDEX_FIRST_REAL = 3;
+
+    private final ContentResolver mContentResolver;
+
+    ForecastDeltaWriter(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+    }
+
+    /**
+     * Insert the days of the forecast that are new or differ from what is stored, and delete
+     * the days that have passed.
+     *
+     * @param locationId the row id of the location the forecast belongs to
+     * @param days one row per day, with every weather column set
+     * @param pruneDate days on or before this date are deleted, for every location
+     * @param stats receives the insert, delete and skip counts
+     * @return the number of days written or deleted; 0 means the stored forecast is unchanged
+     *         and no change notification was sent
+     */
+    int write(long locationId, List<ContentValues> days, long pruneDate, SyncStats stats) {
+        // Dates are normalized by the provider on the way in, so do the same before comparing
+        long minDate = Long.MAX_VALUE;
+        long maxDate = Long.MIN_VALUE;
+        for (ContentValues day : days) {
+            long date = WeatherContract.normalizeDate(day.getAsLong(WeatherEntry.COLUMN_DATE));
+            day.put(WeatherEntry.COLUMN_DATE, date);
+            minDate = Math.min(minDate, date);
+            maxDate = Math.max(maxDate, date);
+        }
+
+        Map<Long, ContentValues> stored = days.isEmpty()
+                ? new HashMap<Long, ContentValues>()
+                : queryStoredDays(locationId, minDate, maxDate);
+
+        List<ContentValues> changed = new ArrayList<ContentValues>(days.size());
+        for (ContentValues day : days) {
+            ContentValues storedDay = stored.get(day.getAsLong(WeatherEntry.COLUMN_DATE));
+            if (storedDay == null || !isSameDay(storedDay, day)) {
+                changed.add(day);
+            }
+        }
+
+        // Even with no changed days there may be expired ones to prune
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.EXTRA_DAYS,
+                changed.toArray(new ContentValues[changed.size()]));
+        extras.putLong(WeatherContract.EXTRA_PRUNE_DATE, pruneDate);
+        Bundle result = mContentResolver.call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_REPLACE_FORECAST, null, extras);
+        int deleted = result != null ? result.getInt(WeatherContract.EXTRA_DELETED) : 0;
+        stats.numInserts += changed.size();
+        stats.numDeletes += deleted;
+        stats.numSkippedEntries += days.size() - changed.size();
+        return changed.size() + deleted;
+    }
+
+    private Map<Long, ContentValues> queryStoredDays(long locationId, long minDate, long maxDate) {
+        Map<Long, ContentValues> stored = new HashMap<Long, ContentValues>();
+        Cursor cursor = mContentResolver.query(
+                WeatherEntry.CONTENT_URI,
+                COMPARED_COLUMNS,
+                WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                        WeatherEntry.COLUMN_DATE + " >= ? AND " +
+                        WeatherEntry.COLUMN_DATE + " <= ?",
+                new String[]{
+                        Long.toString(locationId),
+                        Long.toString(minDate),
+                        Long.toString(maxDate)
+                },
+                null);
+        if (cursor == null) {
+            return stored;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                ContentValues values = new ContentValues();
+                values.put(WeatherEntry.COLUMN_SHORT_DESC, cursor.getString(INDEX_SHORT_DESC));
+                values.put(WeatherEntry.COLUMN_WEATHER_ID, cursor.getInt(INDEX_WEATHER_ID));
+                for (int i = INDEX_FIRST_REAL; i < COMPARED_COLUMNS.length; i++) {
+                    values.put(COMPARED_COLUMNS[i], cursor.getDouble(i));
+                }
+                stored.put(cursor.getLong(INDEX_DATE), values);
+            }
+        } finally {
+            cursor.close();
+        }
+        return stored;
+    }
+
+    private static boolean isSameDay(ContentValues stored, ContentValues incoming) {
+        if (!stored.getAsString(WeatherEntry.COLUMN_SHORT_DESC)
+                .equals(incoming.getAsString(WeatherEntry.COLUMN_SHORT_DESC))) {
+            return false;
+        }
+        if (!stored.getAsInteger(WeatherEntry.COLUMN_WEATHER_ID)
+                .equals(incoming.getAsInteger(WeatherEntry.COLUMN_WEATHER_ID))) {
+            return false;
+        }
+        // REAL columns round-trip doubles exactly, so exact comparison is what we want
+        for (int i = INDEX_FIRST_REAL; i < COMPARED_COLUMNS.length; i++) {
+            Double incomingValue = incoming.getAsDouble(COMPARED_COLUMNS[i]);
+            if (incomingValue == null
+                    || stored.getAsDouble(COMPARED_COLUMNS[i]).doubleValue()
+                    != incomingValue.doubleValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,233 @@
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The HTTP layer used by the sync adapter to download forecasts.
+ *
+ * Every request is bounded by a connect timeout, a read timeout and an overall deadline, so a
+ * stalled server can no longer pin the sync thread.  Responses are closed rather than
+ * disconnected, which leaves the underlying socket in the platform's keep-alive pool for the
+ * next request to the same host.  Each response records how long DNS, connect and the first
+ * byte took, and how many bytes crossed the wire versus how many it decoded to.
+ */
+class ForecastHttpClient {
+    private static final String LOG_TAG = ForecastHttpClient.class.getSimpleName();
+
+    static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    static final int DEFAULT_READ_TIMEOUT_MILLIS = 20 * 1000;
+    static final long DEFAULT_DEADLINE_MILLIS = 60 * 1000;
+
+    // Left over after the parser is done this is a few bytes of whitespace or the gzip
+    // trailer; more than this and a fresh connection is cheaper than reading it all.
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    // One daemon thread is enough to police the deadlines of every in-flight request.
+    private static final ScheduledExecutorService sDeadlineExecutor =
+            new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ForecastHttpClient deadline");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final int mConnectTimeoutMillis;
+    private final int mReadTimeoutMillis;
+    private final long mDeadlineMillis;
+
+    ForecastHttpClient() {
+        this(DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS, DEFAULT_DEADLINE_MILLIS);
+    }
+
+    /**
+     * @param connectTimeoutMillis how long to wait for the TCP connection to be established
+     * @param readTimeoutMillis how long to wait for each read from the socket
+     * @param deadlineMillis how long the whole request, including reading the body, may take
+     */
+    ForecastHttpClient(int connectTimeoutMillis, int readTimeoutMillis, long deadlineMillis) {
+        mConnectTimeoutMillis = connectTimeoutMillis;
+        mReadTimeoutMillis = readTimeoutMillis;
+        mDeadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * A response from the forecast server.  The response must be closed, which reads whatever
+     * is left of a short body so that the connection can be reused.
+     */
+    static final class Response implements Closeable {
+        final int code;
+        final long dnsMillis;
+        final long connectMillis;
+        final long firstByteMillis;
+
+        private final HttpURLConnection mConnection;
+        private final ScheduledFuture<?> mDeadline;
+        private CountingInputStream mWireStream;
+        private CountingInputStream mDecodedStream;
+
+        private Response(HttpURLConnection connection, ScheduledFuture<?> deadline, int code,
+                         long dnsMillis, long connectMillis, long firstByteMillis) {
+            mConnection = connection;
+            mDeadline = deadline;
+            this.code = code;
+            this.dnsMillis = dnsMillis;
+            this.connectMillis = connectMillis;
+            this.firstByteMillis = firstByteMillis;
+        }
+
+        String getHeaderField(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        /**
+         * @return the decompressed response body
+         */
+        InputStream getBody() throws IOException {
+            if (mDecodedStream == null) {
+                mWireStream = new CountingInputStream(mConnection.getInputStream());
+                mDecodedStream = new CountingInputStream(
+                        decodeContent(mWireStream, mConnection.getContentEncoding()));
+            }
+            return mDecodedStream;
+        }
+
+        /**
+         * @return bytes of the body received from the connection, before decompression
+         */
+        long getWireBytes() {
+            return mWireStream != null ? mWireStream.getCount() : 0;
+        }
+
+        /**
+         * @return bytes of the body after decompression
+         */
+        long getDecodedBytes() {
+            return mDecodedStream != null ? mDecodedStream.getCount() : 0;
+        }
+
+        @Override
+        public void close() {
+            try {
+                // Closing (rather than disconnecting) hands the socket back to the pool, but
+                // only once the body has been read to the end.  The parser stops at the final
+                // brace and the decompressor before the gzip trailer, so read the rest of the
+                // raw body here, still under the deadline.
+                InputStream body;
+                if (mWireStream != null) {
+                    body = mWireStream;
+                } else if (code < HttpURLConnection.HTTP_BAD_REQUEST) {
+                    body = mConnection.getInputStream();
+                } else {
+                    body = mConnection.getErrorStream();
+                }
+                if (body != null) {
+                    drain(body);
+                    if (mDecodedStream != null) {
+                        mDecodedStream.close();
+                    } else {
+                        body.close();
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error closing stream", e);
+            } finally {
+                mDeadline.cancel(false);
+            }
+        }
+
+        private static void drain(InputStream in) throws IOException {
+            byte[] buffer = new byte[4096];
+            int drained = 0;
+            int count;
+            while (drained < MAX_DRAIN_BYTES && (count = in.read(buffer)) != -1) {
+                drained += count;
+            }
+        }
+    }
+
+    /**
+     * Issue a GET for the URL and wait for the response headers.
+     *
+     * @param url the URL to fetch
+     * @param requestHeaders extra request headers, may be empty
+     * @return the response; the caller must close it
+     * @throws IOException if the request failed or a timeout or the deadline expired
+     */
+    Response get(URL url, Map<String, String> requestHeaders) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+
+        // Resolve the host up front so DNS time shows up on its own rather than being folded
+        // into the connect time.  The platform caches the result for the connection to use.
+        InetAddress.getByName(url.getHost());
+        long resolved = SystemClock.elapsedRealtime();
+
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(mConnectTimeoutMillis);
+        connection.setReadTimeout(mReadTimeoutMillis);
+        connection.setRequestMethod("GET");
+        // Ask for a compressed body; we decompress it ourselves as it streams into the parser
+        connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+
+        // Disconnecting from another thread makes whatever call is blocked on the connection
+        // throw, which is what turns the overall deadline into an error on the sync thread.
+        ScheduledFuture<?> deadline = sDeadlineExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Log.w(LOG_TAG, "Deadline expired, aborting request");
+                connection.disconnect();
+            }
+        }, mDeadlineMillis, TimeUnit.MILLISECONDS);
+
+        try {
+            connection.connect();
+            long connected = SystemClock.elapsedRealtime();
+            int code = connection.getResponseCode();
+            long firstByte = SystemClock.elapsedRealtime();
+
+            Log.d(LOG_TAG, "GET " + url.getPath() + " " + code
+                    + " dns=" + (resolved - start) + "ms"
+                    + " connect=" + (connected - resolved) + "ms"
+                    + " firstByte=" + (firstByte - connected) + "ms");
+            return new Response(connection, deadline, code,
+                    resolved - start, connected - resolved, firstByte - connected);
+        } catch (IOException e) {
+            deadline.cancel(false);
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * Wraps the response body in the decompressor matching its Content-Encoding.
+     */
+    private static InputStream decodeContent(InputStream in, String contentEncoding)
+            throws IOException {
+        if ("gzip".equalsIgnoreCase(contentEncoding)) {
+            return new GZIPInputStream(in);
+        } else if ("deflate".equalsIgnoreCase(contentEncoding)) {
+            return new InflaterInputStream(in);
+        }
+        return in;
+    }
+}
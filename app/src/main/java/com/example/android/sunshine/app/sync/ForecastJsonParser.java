@@ -0,0 +1,108 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.core.ForecastDay;
+import com.example.android.sunshine.core.ForecastParseException;
+import com.example.android.sunshine.core.ForecastParser;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the OpenWeatherMap daily forecast response into weather table rows.
+ *
+ * The parsing itself lives in the core module's streaming ForecastParser, where it can be
+ * run and profiled on a plain JVM; this turns its days into ContentValues.
+ */
+class ForecastJsonParser {
+
+    /**
+     * Everything we pull out of a single forecast response.  The weather rows carry every
+     * column except the location key, which the caller knows.
+     */
+    static final class Forecast {
+        int messageCode;
+        long cityId;
+        String cityName;
+        double cityLatitude;
+        double cityLongitude;
+        final List<ContentValues> days = new ArrayList<ContentValues>();
+    }
+
+    private ForecastJsonParser() {
+    }
+
+    /**
+     * Parse a forecast response as it streams in.
+     *
+     * @param in the response body, positioned at the start of the JSON document
+     * @param julianStartDay the julian day of the first element of the "list" array
+     * @return the parsed forecast; check {@link Forecast#messageCode} before using the rows
+     * @throws IOException if the stream cannot be read
+     * @throws JSONException if the document does not have the shape we expect
+     */
+    static Forecast parse(InputStream in, int julianStartDay) throws IOException, JSONException {
+        com.example.android.sunshine.core.Forecast parsed;
+        try {
+            parsed = ForecastParser.parse(in, julianStartDay);
+        } catch (ForecastParseException e) {
+            // Surface it the same way the org.json parser did so callers can flag the server
+            // as invalid.
+            throw new JSONException(e.getMessage());
+        }
+
+        return toForecast(parsed);
+    }
+
+    /**
+     * Parse a response carrying several cities' forecasts.
+     *
+     * @return the forecast of each city in the response
+     * @throws IOException if the stream cannot be read
+     * @throws JSONException if the document does not have the shape we expect
+     */
+    static List<Forecast> parseGroup(InputStream in, int julianStartDay)
+            throws IOException, JSONException {
+        List<com.example.android.sunshine.core.Forecast> parsed;
+        try {
+            parsed = ForecastParser.parseGroup(in, julianStartDay);
+        } catch (ForecastParseException e) {
+            throw new JSONException(e.getMessage());
+        }
+
+        List<Forecast> forecasts = new ArrayList<Forecast>(parsed.size());
+        for (com.example.android.sunshine.core.Forecast cityForecast : parsed) {
+            forecasts.add(toForecast(cityForecast));
+        }
+        return forecasts;
+    }
+
+    private static Forecast toForecast(com.example.android.sunshine.core.Forecast parsed) {
+        Forecast forecast = new Forecast();
+        forecast.messageCode = parsed.messageCode;
+        forecast.cityId = parsed.cityId;
+        forecast.cityName = parsed.cityName;
+        forecast.cityLatitude = parsed.cityLatitude;
+        forecast.cityLongitude = parsed.cityLongitude;
+        for (ForecastDay day : parsed.days) {
+            ContentValues weatherValues = new ContentValues();
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, day.date);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, day.humidity);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, day.pressure);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, day.windSpeed);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, day.degrees);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, day.maxTemp);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, day.minTemp);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, day.shortDesc);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, day.weatherId);
+            forecast.days.add(weatherValues);
+        }
+        return forecast;
+    }
+}
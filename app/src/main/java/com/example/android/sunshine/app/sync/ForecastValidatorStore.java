@@ -0,0 +1,90 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Remembers the HTTP cache validators (ETag and Last-Modified) of the last forecast we stored
+ * for each request URL, so the next sync can ask the server for the forecast only if it has
+ * changed since then.  For servers that ignore those, it also remembers a hash of the last
+ * response body, so an identical response can be recognised without parsing it.
+ */
+class ForecastValidatorStore {
+    private static final String PREFS_NAME = "forecast_validators";
+
+    private static final String KEY_ETAG = ":etag";
+    private static final String KEY_LAST_MODIFIED = ":last_modified";
+    private static final String KEY_CONTENT_HASH = ":content_hash";
+
+    static final String HEADER_ETAG = "ETag";
+    static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private final SharedPreferences mPrefs;
+
+    ForecastValidatorStore(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Adds the conditional request headers for this URL, if we have validators for it.
+     */
+    void addConditionalHeaders(URL url, Map<String, String> requestHeaders) {
+        String key = url.toString();
+        String etag = mPrefs.getString(key + KEY_ETAG, null);
+        if (etag != null) {
+            requestHeaders.put(HEADER_IF_NONE_MATCH, etag);
+        }
+        String lastModified = mPrefs.getString(key + KEY_LAST_MODIFIED, null);
+        if (lastModified != null) {
+            requestHeaders.put(HEADER_IF_MODIFIED_SINCE, lastModified);
+        }
+    }
+
+    /**
+     * @return the hash of the last response body stored for this URL, or null
+     */
+    String getContentHash(URL url) {
+        return mPrefs.getString(url.toString() + KEY_CONTENT_HASH, null);
+    }
+
+    /**
+     * Saves the validators of a response we have successfully stored.
+     *
+     * @param etag the response's ETag header, or null
+     * @param lastModified the response's Last-Modified header, or null
+     * @param contentHash the hash of the response body, or null
+     */
+    void save(URL url, String etag, String lastModified, String contentHash) {
+        String key = url.toString();
+        SharedPreferences.Editor editor = mPrefs.edit();
+        putOrRemove(editor, key + KEY_ETAG, etag);
+        putOrRemove(editor, key + KEY_LAST_MODIFIED, lastModified);
+        putOrRemove(editor, key + KEY_CONTENT_HASH, contentHash);
+        editor.apply();
+    }
+
+    /**
+     * Forgets the validators for this URL so the next request is unconditional.
+     */
+    void clear(URL url) {
+        String key = url.toString();
+        mPrefs.edit()
+                .remove(key + KEY_ETAG)
+                .remove(key + KEY_LAST_MODIFIED)
+                .remove(key + KEY_CONTENT_HASH)
+                .apply();
+    }
+
+    private static void putOrRemove(SharedPreferences.Editor editor, String key, String value) {
+        if (value != null) {
+            editor.putString(key, value);
+        } else {
+            editor.remove(key);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.android.sunshine.app.sync;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The outcome of fetching the forecast for one location during a sync.  Fetches run in
+ * parallel and produce one of these each; the sync adapter then commits them all to the
+ * database in a single pass on the sync thread.
+ */
+class LocationForecast {
+    final String locationSetting;
+    final URL url;
+
+    // Receives the timings of the fetch and commit
+    final SyncTimer timer;
+
+    // Other location settings that resolve to the same city.  They are not fetched; the
+    // forecast fetched for this one is stored for them too.
+    final List<String> aliases = new ArrayList<String>();
+
+    // The id OWM gave the city the last time the location was synced, or 0 if it never has
+    // been.  Cities with an id can be fetched together in a group request.
+    long cityId;
+
+    // Which lane of the API quota the fetch takes its token from
+    @ApiQuotaLimiter.Lane
+    int lane = ApiQuotaLimiter.LANE_BACKGROUND;
+
+    @SunshineSyncAdapter.LocationStatus
+    int status = SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN;
+
+    // True when the server answered 304, or sent the same body as last time, and the stored
+    // forecast is still current.
+    boolean notModified;
+
+    // The parsed forecast; only set when the fetch succeeded with a new forecast.
+    ForecastJsonParser.Forecast forecast;
+
+    // Cache validators to save once the forecast has been committed.
+    String etag;
+    String lastModified;
+    String contentHash;
+
+    // The julian day of the first forecast row, used to prune older rows.
+    int julianStartDay;
+
+    // How the last attempt failed, if it did.  A transient failure is worth retrying; a rate
+    // limited one is not, and carries the server's Retry-After in seconds (0 if none).
+    boolean transientFailure;
+    boolean parseFailure;
+    boolean rateLimited;
+    long retryAfterSeconds;
+
+    // True when the lane was out of API quota and the forecast was never asked for
+    boolean quotaExhausted;
+
+    // True when the circuit breaker knew the server to be down and the forecast was never
+    // asked for
+    boolean circuitOpen;
+
+    // Number of attempts made to fetch this forecast
+    int attempts;
+
+    LocationForecast(String locationSetting, URL url, SyncTimer timer) {
+        this.locationSetting = locationSetting;
+        this.url = url;
+        this.timer = timer;
+    }
+}
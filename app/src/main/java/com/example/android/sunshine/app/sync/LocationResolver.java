@@ -0,0 +1,89 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Works out which of the locations in a sync are the same city.
+ *
+ * Locations are keyed by the free-text location setting, so "94043", "Mountain View" and a
+ * Place Picker result can all be the same OWM city, fetched and stored separately.  Once a
+ * location has been synced we know the id of the city OWM resolved it to.  Requests for
+ * locations that resolve to the same city are folded into one, and the others ride along as
+ * its aliases.
+ */
+class LocationResolver {
+    private static final String LOG_TAG = LocationResolver.class.getSimpleName();
+
+    private final ContentResolver mContentResolver;
+
+    LocationResolver(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+    }
+
+    /**
+     * Folds requests for the same city into the first request for it, and fills in the city
+     * id of every request we know it for.  Locations that have never been synced can't be
+     * resolved yet, so they are always fetched.
+     *
+     * @return the requests to fetch, in their original order, with aliases filled in
+     */
+    List<LocationForecast> resolve(List<LocationForecast> requests) {
+        Map<String, Long> cityIds = loadCityIds();
+        Map<Long, LocationForecast> byCity = new HashMap<Long, LocationForecast>();
+        List<LocationForecast> resolved = new ArrayList<LocationForecast>(requests.size());
+        for (LocationForecast request : requests) {
+            Long cityId = cityIds.get(request.locationSetting);
+            LocationForecast primary = cityId != null ? byCity.get(cityId) : null;
+            if (primary != null) {
+                primary.aliases.add(request.locationSetting);
+                Log.d(LOG_TAG, request.locationSetting + " is the same city as "
+                        + primary.locationSetting + ", not fetching it separately");
+                continue;
+            }
+            if (cityId != null) {
+                request.cityId = cityId;
+                byCity.put(cityId, request);
+            }
+            resolved.add(request);
+        }
+        return resolved;
+    }
+
+    /**
+     * @return location setting -> the id of the city OWM resolved it to, for every location
+     *         synced before
+     */
+    private Map<String, Long> loadCityIds() {
+        Map<String, Long> cityIds = new HashMap<String, Long>();
+        Cursor cursor = mContentResolver.query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                        WeatherContract.LocationEntry.COLUMN_CITY_ID
+                },
+                // A row without an id gets one the next time its location is synced
+                WeatherContract.LocationEntry.COLUMN_CITY_ID + " != 0",
+                null,
+                null);
+        if (cursor == null) {
+            return cityIds;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                cityIds.put(cursor.getString(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return cityIds;
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs the consumers of a finished sync (widgets, Muzei, the notification) off the sync
+ * thread.
+ *
+ * The sync adapter holds the sync thread, and the wakelock that comes with it, until
+ * onPerformSync returns.  The notification fetches its large icon from the art server, so
+ * running the consumers inline let a slow server stretch every sync.  Here they run in
+ * parallel on their own threads, and a supervisor cancels any that outlive their deadline.
+ */
+class PostSyncPipeline {
+    private static final String LOG_TAG = PostSyncPipeline.class.getSimpleName();
+
+    private static final int MAX_CONSUMER_THREADS = 3;
+
+    private static final ExecutorService sConsumerExecutor =
+            createExecutor(MAX_CONSUMER_THREADS);
+    private static final ExecutorService sSupervisorExecutor = createExecutor(1);
+
+    /**
+     * One consumer of the sync's results.
+     */
+    static final class Consumer {
+        // The MetricsEntry.PHASE_ the consumer is timed under
+        final String phase;
+        final long deadlineMillis;
+        final Runnable work;
+
+        Consumer(String phase, long deadlineMillis, Runnable work) {
+            this.phase = phase;
+            this.deadlineMillis = deadlineMillis;
+            this.work = work;
+        }
+    }
+
+    private static ExecutorService createExecutor(int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        // Don't keep idle threads around between syncs
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Start the consumers and return straight away.  Their timings are recorded in the timer
+     * and written to the metrics table once the last one has finished or been cancelled.
+     */
+    static void dispatch(List<Consumer> consumers, final SyncTimer timer,
+                         final ContentResolver contentResolver) {
+        final List<Consumer> started = new ArrayList<Consumer>(consumers);
+        final List<Future<?>> futures = new ArrayList<Future<?>>(consumers.size());
+        for (final Consumer consumer : started) {
+            futures.add(sConsumerExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    long start = SyncTimer.start();
+                    consumer.work.run();
+                    // A cancelled consumer is recorded by the supervisor
+                    if (!Thread.currentThread().isInterrupted()) {
+                        timer.record(null, consumer.phase, start);
+                    }
+                }
+            }));
+        }
+
+        final long dispatchedAt = SyncTimer.start();
+        sSupervisorExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < started.size(); i++) {
+                    Consumer consumer = started.get(i);
+                    Future<?> future = futures.get(i);
+                    long remaining = consumer.deadlineMillis - (SyncTimer.start() - dispatchedAt);
+                    try {
+                        future.get(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException e) {
+                        if (future.cancel(true)) {
+                            Log.w(LOG_TAG, consumer.phase + " missed its "
+                                    + consumer.deadlineMillis + "ms deadline, cancelled");
+                            timer.record(null, consumer.phase, consumer.deadlineMillis, 0);
+                        }
+                    } catch (ExecutionException e) {
+                        Log.e(LOG_TAG, "Error in " + consumer.phase, e.getCause());
+                    } catch (CancellationException e) {
+                        // Nothing left to wait for
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                timer.flush(contentResolver);
+            }
+        });
+    }
+}
@@ -0,0 +1,236 @@
+package com.example.android.sunshine.app.sync;
+
+import android.accounts.Account;
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SyncStatusObserver;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.request.target.Target;
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Refreshes every tracked location, and fetches the weather art they need, while the device is
+ * charging on an unmetered network and a sync costs the user nothing.
+ *
+ * The job asks the SyncManager for an expedited sync marked as a prefetch rather than running
+ * the adapter itself, so it never overlaps another sync and the sync's backoff is honoured.
+ * It waits for that sync to finish, then fetches the art, and only then finishes.
+ *
+ * The job runs at most once an hour, whenever JobScheduler finds both conditions met.  While
+ * it keeps running, the periodic sync only has to cover the time in between, so
+ * SyncIntervalScheduler stretches it out.  Each sync records whether it was one of these or a forced one in
+ * PrefetchStats, so we can see how many syncs moved off metered networks.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class PrefetchJobService extends JobService {
+    private static final String LOG_TAG = PrefetchJobService.class.getSimpleName();
+
+    private static final int PREFETCH_JOB_ID = 1;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Only touched on the main thread
+    private JobParameters mParams;
+    private Object mSyncObserverHandle;
+    private boolean mSyncSeen;
+    private PrefetchTask mTask;
+
+    // Called on a binder thread whenever a sync of any app is queued, starts or ends
+    private final SyncStatusObserver mSyncObserver = new SyncStatusObserver() {
+        @Override
+        public void onStatusChanged(int which) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onSyncStatusChanged();
+                }
+            });
+        }
+    };
+
+    /**
+     * @return true if the device can run the prefetch job
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    /**
+     * Schedule the prefetch job, unless it is already scheduled.  Rescheduling would restart
+     * its period.
+     */
+    public static void schedule(Context context) {
+        if (!isSupported()) {
+            return;
+        }
+        JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            if (job.getId() == PREFETCH_JOB_ID) {
+                return;
+            }
+        }
+        JobInfo job = new JobInfo.Builder(PREFETCH_JOB_ID,
+                new ComponentName(context, PrefetchJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .setRequiresCharging(true)
+                .setPeriodic(SyncIntervalScheduler.MIN_INTERVAL * 1000L)
+                .setPersisted(true)
+                .build();
+        if (scheduler.schedule(job) != JobScheduler.RESULT_SUCCESS) {
+            Log.w(LOG_TAG, "Couldn't schedule the prefetch job");
+        }
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        Account account = SunshineSyncAdapter.getSyncAccount(this);
+        if (null == account) {
+            return false;
+        }
+        Log.d(LOG_TAG, "Prefetching on an unmetered network while charging");
+        mParams = params;
+        mSyncSeen = false;
+        // Watch before asking, so the sync can't come and go unseen
+        mSyncObserverHandle = ContentResolver.addStatusChangeListener(
+                ContentResolver.SYNC_OBSERVER_TYPE_PENDING
+                        | ContentResolver.SYNC_OBSERVER_TYPE_ACTIVE,
+                mSyncObserver);
+
+        Bundle extras = new Bundle();
+        extras.putBoolean(SunshineSyncAdapter.SYNC_EXTRAS_PREFETCH, true);
+        extras.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
+        ContentResolver.requestSync(account, getString(R.string.content_authority), extras);
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // Unplugged or off wifi; whatever was fetched is kept, and the job runs again next time
+        stopWatchingSync();
+        if (null != mTask) {
+            mTask.cancel(true);
+            mTask = null;
+        }
+        mParams = null;
+        return false;
+    }
+
+    /**
+     * Once our sync has been queued or started and there is nothing left queued or running,
+     * it's done; fetch the art for what it stored.
+     */
+    private void onSyncStatusChanged() {
+        if (null == mParams || null != mTask) {
+            return;
+        }
+        Account account = SunshineSyncAdapter.getSyncAccount(this);
+        String authority = getString(R.string.content_authority);
+        if (ContentResolver.isSyncPending(account, authority)
+                || ContentResolver.isSyncActive(account, authority)) {
+            mSyncSeen = true;
+            return;
+        }
+        if (!mSyncSeen) {
+            return;
+        }
+        stopWatchingSync();
+        mTask = new PrefetchTask(mParams);
+        // Not the serial executor; the job shouldn't queue behind the app's other tasks
+        mTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void stopWatchingSync() {
+        if (null != mSyncObserverHandle) {
+            ContentResolver.removeStatusChangeListener(mSyncObserverHandle);
+            mSyncObserverHandle = null;
+        }
+    }
+
+    private class PrefetchTask extends AsyncTask<Void, Void, Void> {
+        private final JobParameters mParams;
+
+        PrefetchTask(JobParameters params) {
+            mParams = params;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            Context context = getApplicationContext();
+            if (!Utility.usingLocalGraphics(context)) {
+                prewarmArt(context);
+            }
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            mTask = null;
+            PrefetchJobService.this.mParams = null;
+            jobFinished(mParams, false);
+        }
+
+        /**
+         * Download the art for every condition in the stored forecasts into Glide's disk
+         * cache, so the list, the detail view, the widgets and the notification don't have to
+         * fetch it over whatever network the user is on later.
+         */
+        private void prewarmArt(Context context) {
+            Set<String> artUrls = new HashSet<String>();
+            Cursor cursor = context.getContentResolver().query(
+                    WeatherContract.WeatherEntry.CONTENT_URI,
+                    new String[]{WeatherContract.WeatherEntry.COLUMN_WEATHER_ID},
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ?",
+                    new String[]{Long.toString(WeatherContract.normalizeDate(
+                            System.currentTimeMillis()))},
+                    null);
+            if (null == cursor) {
+                return;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    artUrls.add(Utility.getArtUrlForWeatherCondition(context, cursor.getInt(0)));
+                }
+            } finally {
+                cursor.close();
+            }
+
+            for (String artUrl : artUrls) {
+                if (isCancelled()) {
+                    return;
+                }
+                try {
+                    Glide.with(context)
+                            .load(artUrl)
+                            .downloadOnly(Target.SIZE_ORIGINAL, Target.SIZE_ORIGINAL)
+                            .get();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (ExecutionException e) {
+                    Log.e(LOG_TAG, "Error prefetching art from " + artUrl, e);
+                }
+            }
+            Log.d(LOG_TAG, "Prefetched " + artUrls.size() + " pieces of weather art");
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+
+/**
+ * Counts opportunistic syncs, run by the prefetch job while syncing is cheap, apart from forced
+ * ones, run by the periodic sync or on request whatever the network.  Forced syncs on a metered
+ * network are counted again on their own; that's the number the prefetch job is meant to
+ * bring down.  The counts are logged at the end of every sync.
+ */
+public class PrefetchStats {
+    private static final String PREFS_NAME = "prefetch_stats";
+
+    private static final String KEY_OPPORTUNISTIC_SYNCS = "opportunistic_syncs";
+    private static final String KEY_LAST_OPPORTUNISTIC_SYNC = "last_opportunistic_sync";
+    private static final String KEY_OPPORTUNISTIC_FETCHES = "opportunistic_fetches";
+    private static final String KEY_FORCED_SYNCS = "forced_syncs";
+    private static final String KEY_FORCED_FETCHES = "forced_fetches";
+    private static final String KEY_FORCED_METERED_SYNCS = "forced_metered_syncs";
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+
+    public PrefetchStats(Context context) {
+        mContext = context.getApplicationContext();
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Adds one sync to the counts.
+     *
+     * @param opportunistic true if the prefetch job ran the sync
+     * @param fetches the number of forecasts the sync asked the server for
+     */
+    synchronized void record(boolean opportunistic, int fetches) {
+        SharedPreferences.Editor editor = mPrefs.edit();
+        if (opportunistic) {
+            editor.putLong(KEY_OPPORTUNISTIC_SYNCS, getOpportunisticSyncs() + 1)
+                    .putLong(KEY_LAST_OPPORTUNISTIC_SYNC, System.currentTimeMillis())
+                    .putLong(KEY_OPPORTUNISTIC_FETCHES, getOpportunisticFetches() + fetches);
+        } else {
+            editor.putLong(KEY_FORCED_SYNCS, getForcedSyncs() + 1)
+                    .putLong(KEY_FORCED_FETCHES, getForcedFetches() + fetches);
+            if (isMetered()) {
+                editor.putLong(KEY_FORCED_METERED_SYNCS, getForcedMeteredSyncs() + 1);
+            }
+        }
+        editor.apply();
+    }
+
+    public long getOpportunisticSyncs() {
+        return mPrefs.getLong(KEY_OPPORTUNISTIC_SYNCS, 0);
+    }
+
+    /**
+     * @return when the prefetch job last ran a sync, in milliseconds since the epoch, or 0
+     */
+    public long getLastOpportunisticSyncTime() {
+        return mPrefs.getLong(KEY_LAST_OPPORTUNISTIC_SYNC, 0);
+    }
+
+    public long getOpportunisticFetches() {
+        return mPrefs.getLong(KEY_OPPORTUNISTIC_FETCHES, 0);
+    }
+
+    public long getForcedSyncs() {
+        return mPrefs.getLong(KEY_FORCED_SYNCS, 0);
+    }
+
+    public long getForcedFetches() {
+        return mPrefs.getLong(KEY_FORCED_FETCHES, 0);
+    }
+
+    public long getForcedMeteredSyncs() {
+        return mPrefs.getLong(KEY_FORCED_METERED_SYNCS, 0);
+    }
+
+    private boolean isMetered() {
+        ConnectivityManager cm =
+                (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        return cm.isActiveNetworkMetered();
+    }
+}
@@ -24,33 +24,54 @@ import android.os.Build;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.support.annotation.IntDef;
+import android.support.annotation.VisibleForTesting;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.TaskStackBuilder;
 import android.text.format.Time;
+import android.util.Base64;
 import android.util.Log;
 
 import com.bumptech.glide.Glide;
+import com.bumptech.glide.load.engine.DiskCacheStrategy;
 import com.example.android.sunshine.app.BuildConfig;
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.ForecastBus;
+import com.example.android.sunshine.app.data.ForecastSnapshot;
 import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.MetricsEntry;
 import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Vector;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
@@ -64,19 +85,6 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     private static final int WEATHER_NOTIFICATION_ID = 3004;
 
 
-    private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
-    };
-
-    // these indices must match the projection
-    private static final int INDEX_WEATHER_ID = 0;
-    private static final int INDEX_MAX_TEMP = 1;
-    private static final int INDEX_MIN_TEMP = 2;
-    private static final int INDEX_SHORT_DESC = 3;
-
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({LOCATION_STATUS_OK, LOCATION_STATUS_SERVER_DOWN, LOCATION_STATUS_SERVER_INVALID,  LOCATION_STATUS_UNKNOWN, LOCATION_STATUS_INVALID})
     public @interface LocationStatus {}
@@ -87,297 +95,1002 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public static final int LOCATION_STATUS_UNKNOWN = 3;
     public static final int LOCATION_STATUS_INVALID = 4;
 
+    // Set in the extras of a sync run by the prefetch job, while syncing costs the user nothing
+    public static final String SYNC_EXTRAS_PREFETCH = "prefetch";
+
+    // Name of the SharedPreferences file holding the status of each synced location
+    public static final String LOCATION_STATUS_PREFS = "location_status";
+
+    // HttpURLConnection has no constant for this one
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    // Upper bound on forecasts downloaded at the same time when syncing every saved location
+    private static final int MAX_PARALLEL_FETCHES = 4;
+
+    private static final ExecutorService sFetchExecutor = createFetchExecutor();
+
+    // How long each post-sync consumer may run before it is cancelled
+    private static final long UPDATE_WIDGETS_DEADLINE_MILLIS = 5 * 1000;
+    private static final long UPDATE_MUZEI_DEADLINE_MILLIS = 5 * 1000;
+    private static final long NOTIFY_WEATHER_DEADLINE_MILLIS = 15 * 1000;
+
+    // How long the notification waits for its large icon before using the bundled art
+    private static final long LARGE_ICON_TIMEOUT_MILLIS = 10 * 1000;
+
+    // Possible parameters are avaiable at OWM's forecast API page, at
+    // http://openweathermap.org/API#forecast
+    private static final String FORECAST_BASE_URL =
+            "http://api.openweathermap.org/data/2.5/forecast/daily?";
+
+    // Where forecasts are fetched from; tests point this at a local stand-in server
+    private static volatile String sForecastBaseUrl = FORECAST_BASE_URL;
+
+    // Where several cities' daily forecasts can be fetched in one request, or null if the
+    // backend can't do that.  OWM's group call only covers current weather, so this is off
+    // unless a backend that has it, like the stand-in server, is configured.
+    private static volatile String sForecastGroupUrl = null;
+
+    // Most cities a group request may ask for, as with OWM's current weather group call
+    private static final int MAX_GROUP_SIZE = 20;
+
+    private final ForecastHttpClient mHttpClient;
+    private final ForecastValidatorStore mValidatorStore;
+    private final SyncTrafficStats mTrafficStats;
+    private final SyncRetryPolicy mRetryPolicy;
+    private final ForecastDeltaWriter mDeltaWriter;
+    private final SyncCoalescer mCoalescer;
+    private final SyncIntervalScheduler mIntervalScheduler;
+    private final LocationResolver mLocationResolver;
+    private final ApiQuotaLimiter mQuotaLimiter;
+    private final ForecastCircuitBreaker mCircuitBreaker;
+    private final PrefetchStats mPrefetchStats;
+
     public SunshineSyncAdapter(Context context, boolean autoInitialize) {
         super(context, autoInitialize);
+        mHttpClient = new ForecastHttpClient();
+        mValidatorStore = new ForecastValidatorStore(context);
+        mTrafficStats = new SyncTrafficStats(context);
+        mRetryPolicy = new SyncRetryPolicy(context);
+        mDeltaWriter = new ForecastDeltaWriter(context.getContentResolver());
+        mCoalescer = SyncCoalescer.getInstance(context);
+        mIntervalScheduler = new SyncIntervalScheduler(context);
+        mLocationResolver = new LocationResolver(context.getContentResolver());
+        mQuotaLimiter = ApiQuotaLimiter.getInstance(context);
+        mCircuitBreaker = ForecastCircuitBreaker.getInstance(context);
+        mPrefetchStats = new PrefetchStats(context);
+    }
+
+    private static ExecutorService createFetchExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                MAX_PARALLEL_FETCHES, MAX_PARALLEL_FETCHES, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        // Don't keep idle threads around between syncs
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     @Override
     public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
         Log.d(LOG_TAG, "Starting sync");
 
-        // We no longer need just the location String, but also potentially the latitude and
-        // longitude, in case we are syncing based on a new Place Picker API result.
         Context context = getContext();
-        String locationQuery = Utility.getPreferredLocation(context);
-        String locationLatitude = String.valueOf(Utility.getLocationLatitude(context));
-        String locationLongitude = String.valueOf(Utility.getLocationLongitude(context));
 
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
+        // While the API key is rate limited, every call we make just burns more quota
+        long rateLimitedUntil = mRetryPolicy.getRateLimitedUntil();
+        if (rateLimitedUntil > 0) {
+            Log.d(LOG_TAG, "Skipping sync, rate limited until " + rateLimitedUntil);
+            syncResult.delayUntil = rateLimitedUntil;
+            return;
+        }
+
+        // The prefetch job refreshes every tracked location while it's cheap to
+        boolean prefetch = extras.getBoolean(SYNC_EXTRAS_PREFETCH);
 
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
+        SyncTimer timer = new SyncTimer();
+        List<LocationForecast> requests = new ArrayList<LocationForecast>();
+        try {
+            requests.add(new LocationForecast(Utility.getPreferredLocation(context),
+                    buildPreferredLocationUrl(context), timer));
+            if (prefetch || Utility.isSyncAllLocationsEnabled(context)) {
+                addSavedLocations(requests, timer);
+            }
+        } catch (MalformedURLException e) {
+            Log.e(LOG_TAG, "Error ", e);
+            setLocationStatus(context, LOCATION_STATUS_INVALID);
+            return;
+        }
+
+        // A refresh the user asked for may spend the quota background syncs leave for it
+        int lane = extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL)
+                ? ApiQuotaLimiter.LANE_USER : ApiQuotaLimiter.LANE_BACKGROUND;
+
+        // Requests for these locations made from now on are covered by this sync
+        List<String> locationSettings = new ArrayList<String>(requests.size());
+        for (LocationForecast request : requests) {
+            request.lane = lane;
+            locationSettings.add(request.locationSetting);
+        }
+        mCoalescer.onSyncStarted(locationSettings);
+        try {
+            // Fetch each city once, however many of the locations resolve to it
+            requests = mLocationResolver.resolve(requests);
+            List<LocationForecast> results = fetchForecasts(requests);
+            int fetches = 0;
+            for (LocationForecast result : results) {
+                if (!result.quotaExhausted && !result.circuitOpen) {
+                    fetches++;
+                }
+            }
+            mPrefetchStats.record(prefetch, fetches);
+
+            // Commit everything we fetched in one pass on the sync thread, then let the
+            // widgets, Muzei and the notification know once.  A result may be another
+            // sync's, shared by the coalescer, so the aliases come from our own request.
+            // The scheduler judges how fast the weather moves by the location that changed
+            // most; a sum would call every sync with many saved cities volatile.
+            int changedDays = 0;
+            for (int i = 0; i < results.size(); i++) {
+                changedDays = Math.max(changedDays, commitForecast(results.get(i),
+                        requests.get(i).aliases, syncResult));
+            }
+            if (changedDays > 0) {
+                // Fold the sync's writes back into the database before the readers it's about
+                // to wake up come looking
+                context.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                        WeatherContract.METHOD_CHECKPOINT, null, null);
+                notifyConsumers(timer);
+            }
+            if (reportFailures(results, syncResult)) {
+                // Only a complete sync says anything about how fast the forecast is changing
+                mIntervalScheduler.onSyncCompleted(changedDays);
+            }
+            Log.d(LOG_TAG, "Sync Complete. " + results.size() + " location(s) synced");
+            logSyncStats();
+        } finally {
+            mCoalescer.onSyncFinished(locationSettings);
+            timer.finish(context.getContentResolver());
+        }
+    }
 
+    /**
+     * Build the forecast URL for the location in the settings.
+     *
+     * We no longer need just the location String, but also potentially the latitude and
+     * longitude, in case we are syncing based on a new Place Picker API result.
+     */
+    private static URL buildPreferredLocationUrl(Context context) throws MalformedURLException {
+        // Instead of always building the query based off of the location string, we want to
+        // potentially build a query using a lat/lon value. This will be the case when we are
+        // syncing based off of a new location from the Place Picker API. So we need to check
+        // if we have a lat/lon to work with, and use those when we do. Otherwise, the weather
+        // service may not understand the location address provided by the Place Picker API
+        // and the user could end up with no weather! The horror!
+        if (Utility.isLocationLatLonAvailable(context)) {
+            return buildForecastUrl(null,
+                    String.valueOf(Utility.getLocationLatitude(context)),
+                    String.valueOf(Utility.getLocationLongitude(context)));
+        }
+        return buildForecastUrl(Utility.getPreferredLocation(context), null, null);
+    }
+
+    /**
+     * Build the URL for the OpenWeatherMap daily forecast query, either by location query
+     * string or, when locationQuery is null, by latitude and longitude.
+     */
+    static URL buildForecastUrl(String locationQuery, String latitude, String longitude)
+            throws MalformedURLException {
+        // Construct the URL for the OpenWeatherMap query
+        final String QUERY_PARAM = "q";
+        final String LAT_PARAM = "lat";
+        final String LON_PARAM = "lon";
+
+        Uri.Builder uriBuilder = Uri.parse(sForecastBaseUrl).buildUpon();
+        if (locationQuery == null) {
+            uriBuilder.appendQueryParameter(LAT_PARAM, latitude)
+                    .appendQueryParameter(LON_PARAM, longitude);
+        } else {
+            uriBuilder.appendQueryParameter(QUERY_PARAM, locationQuery);
+        }
+
+        return new URL(appendForecastParameters(uriBuilder).build().toString());
+    }
+
+    /**
+     * Build the URL for a group request for the daily forecasts of the given cities.
+     */
+    private static URL buildGroupUrl(String groupUrl, List<LocationForecast> batch)
+            throws MalformedURLException {
+        final String ID_PARAM = "id";
+
+        StringBuilder ids = new StringBuilder();
+        for (LocationForecast request : batch) {
+            if (ids.length() > 0) ids.append(',');
+            ids.append(request.cityId);
+        }
+        Uri.Builder uriBuilder = Uri.parse(groupUrl).buildUpon()
+                .appendQueryParameter(ID_PARAM, ids.toString());
+        return new URL(appendForecastParameters(uriBuilder).build().toString());
+    }
+
+    private static Uri.Builder appendForecastParameters(Uri.Builder uriBuilder) {
         String format = "json";
         String units = "metric";
         int numDays = 14;
 
+        final String FORMAT_PARAM = "mode";
+        final String UNITS_PARAM = "units";
+        final String DAYS_PARAM = "cnt";
+        final String APPID_PARAM = "APPID";
+
+        return uriBuilder.appendQueryParameter(FORMAT_PARAM, format)
+                .appendQueryParameter(UNITS_PARAM, units)
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
+                .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY);
+    }
+
+    /**
+     * Send forecast requests to a server other than OpenWeatherMap, such as a local stand-in
+     * for load testing.
+     *
+     * @param baseUrl the daily forecast endpoint, or null to go back to OpenWeatherMap
+     */
+    @VisibleForTesting
+    static void setForecastBaseUrl(String baseUrl) {
+        sForecastBaseUrl = baseUrl != null ? baseUrl : FORECAST_BASE_URL;
+    }
+
+    /**
+     * Fetch cities we know the ids of in batches, from a backend that can answer for several
+     * cities in one request.  Cities a batch doesn't answer for are fetched one by one.
+     *
+     * @param groupUrl the multi-city daily forecast endpoint, or null to fetch every city on
+     *                 its own
+     */
+    @VisibleForTesting
+    static void setForecastGroupUrl(String groupUrl) {
+        sForecastGroupUrl = groupUrl;
+    }
+
+    /**
+     * Adds a request for every location saved in the location table, other than the ones
+     * already in the list.  Saved locations are fetched by the coordinates OWM gave us the
+     * first time round, which it resolves more reliably than free-text settings.
+     */
+    private void addSavedLocations(List<LocationForecast> requests, SyncTimer timer)
+            throws MalformedURLException {
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                        WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+                        WeatherContract.LocationEntry.COLUMN_COORD_LONG
+                },
+                null,
+                null,
+                null);
+        if (cursor == null) {
+            return;
+        }
         try {
-            // Construct the URL for the OpenWeatherMap query
-            // Possible parameters are avaiable at OWM's forecast API page, at
-            // http://openweathermap.org/API#forecast
-            final String FORECAST_BASE_URL =
-                    "http://api.openweathermap.org/data/2.5/forecast/daily?";
-            final String QUERY_PARAM = "q";
-            final String LAT_PARAM = "lat";
-            final String LON_PARAM = "lon";
-            final String FORMAT_PARAM = "mode";
-            final String UNITS_PARAM = "units";
-            final String DAYS_PARAM = "cnt";
-            final String APPID_PARAM = "APPID";
-
-            Uri.Builder uriBuilder = Uri.parse(FORECAST_BASE_URL).buildUpon();
-
-            // Instead of always building the query based off of the location string, we want to
-            // potentially build a query using a lat/lon value. This will be the case when we are
-            // syncing based off of a new location from the Place Picker API. So we need to check
-            // if we have a lat/lon to work with, and use those when we do. Otherwise, the weather
-            // service may not understand the location address provided by the Place Picker API
-            // and the user could end up with no weather! The horror!
-            if (Utility.isLocationLatLonAvailable(context)) {
-                uriBuilder.appendQueryParameter(LAT_PARAM, locationLatitude)
-                        .appendQueryParameter(LON_PARAM, locationLongitude);
-            } else {
-                uriBuilder.appendQueryParameter(QUERY_PARAM, locationQuery);
+            while (cursor.moveToNext()) {
+                String locationSetting = cursor.getString(0);
+                boolean alreadyRequested = false;
+                for (LocationForecast request : requests) {
+                    if (request.locationSetting.equals(locationSetting)) {
+                        alreadyRequested = true;
+                        break;
+                    }
+                }
+                if (!alreadyRequested) {
+                    requests.add(new LocationForecast(locationSetting, buildForecastUrl(null,
+                            String.valueOf(cursor.getDouble(1)),
+                            String.valueOf(cursor.getDouble(2))), timer));
+                }
             }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Fetch every requested forecast.  Cities we know the id of are fetched in group requests
+     * when the backend has them, and the rest one by one.
+     *
+     * @return the outcome of each request, in the order of the requests
+     */
+    private List<LocationForecast> fetchForecasts(List<LocationForecast> requests) {
+        Set<LocationForecast> grouped = fetchGroups(requests);
+        if (grouped.isEmpty()) {
+            return fetchEach(requests);
+        }
 
-            Uri builtUri = uriBuilder.appendQueryParameter(FORMAT_PARAM, format)
-                    .appendQueryParameter(UNITS_PARAM, units)
-                    .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                    .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
-                    .build();
+        List<LocationForecast> remaining = new ArrayList<LocationForecast>(requests.size());
+        for (LocationForecast request : requests) {
+            if (!grouped.contains(request)) {
+                remaining.add(request);
+            }
+        }
+        Iterator<LocationForecast> fetched = fetchEach(remaining).iterator();
+        List<LocationForecast> results = new ArrayList<LocationForecast>(requests.size());
+        for (LocationForecast request : requests) {
+            if (grouped.contains(request)) {
+                results.add(request);
+            } else if (fetched.hasNext()) {
+                results.add(fetched.next());
+            } else {
+                // Interrupted before the rest were fetched
+                break;
+            }
+        }
+        return results;
+    }
 
-            URL url = new URL(builtUri.toString());
+    /**
+     * Fetch the requests for cities we know the id of in group requests of up to
+     * MAX_GROUP_SIZE cities, run in parallel on the fetch pool.  Does nothing unless the
+     * backend has group requests, or for a lone city, which gains nothing from one.
+     *
+     * @return the requests a group request answered
+     */
+    private Set<LocationForecast> fetchGroups(List<LocationForecast> requests) {
+        final Set<LocationForecast> grouped =
+                Collections.synchronizedSet(new HashSet<LocationForecast>());
+        final String groupUrl = sForecastGroupUrl;
+        if (groupUrl == null) {
+            return grouped;
+        }
 
-            // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
-
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
-                return;
+        List<List<LocationForecast>> batches = new ArrayList<List<LocationForecast>>();
+        List<LocationForecast> batch = null;
+        int batched = 0;
+        for (LocationForecast request : requests) {
+            if (request.cityId == 0) {
+                continue;
             }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
+            if (batch == null || batch.size() == MAX_GROUP_SIZE) {
+                batch = new ArrayList<LocationForecast>(MAX_GROUP_SIZE);
+                batches.add(batch);
             }
+            batch.add(request);
+            batched++;
+        }
+        if (batched < 2) {
+            return grouped;
+        }
 
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                return;
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(batches.size());
+        for (final List<LocationForecast> cities : batches) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    grouped.addAll(fetchGroup(groupUrl, cities));
+                    return null;
+                }
+            });
+        }
+        try {
+            sFetchExecutor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Log.w(LOG_TAG, "Sync interrupted while fetching forecast groups", e);
+            Thread.currentThread().interrupt();
+        }
+        return grouped;
+    }
+
+    /**
+     * Fetch one batch of cities in a single group request, recording the outcome in each
+     * city's request.  Safe to call from any thread: it does not write to the database.
+     *
+     * @return the requests the group answered; the others are left to be fetched one by one
+     */
+    private List<LocationForecast> fetchGroup(String groupUrl, List<LocationForecast> batch) {
+        List<LocationForecast> answered = new ArrayList<LocationForecast>(batch.size());
+        SyncTimer timer = batch.get(0).timer;
+        // Group timings aren't for any one location
+        String label = "group of " + batch.size();
+        if (!mCircuitBreaker.allowRequest()) {
+            // The cities will each be turned away too, and say so
+            return answered;
+        }
+        if (!mQuotaLimiter.acquire(batch.get(0).lane)) {
+            mCircuitBreaker.onCancelled();
+            return answered;
+        }
+        try {
+            ForecastHttpClient.Response response = mHttpClient.get(
+                    buildGroupUrl(groupUrl, batch), new HashMap<String, String>());
+            if (response.code >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                mCircuitBreaker.onFailure();
+            } else {
+                mCircuitBreaker.onSuccess();
+            }
+            timer.record(label, MetricsEntry.PHASE_DNS, response.dnsMillis, 0);
+            timer.record(label, MetricsEntry.PHASE_CONNECT, response.connectMillis, 0);
+            timer.record(label, MetricsEntry.PHASE_FIRST_BYTE, response.firstByteMillis, 0);
+            try {
+                if (response.code == HTTP_TOO_MANY_REQUESTS) {
+                    // Asking for the cities one by one would only burn more quota
+                    for (LocationForecast request : batch) {
+                        request.attempts++;
+                        markRateLimited(request, response);
+                    }
+                    return batch;
+                }
+                if (response.code != HttpURLConnection.HTTP_OK) {
+                    Log.d(LOG_TAG, "Group request failed with " + response.code
+                            + ", fetching " + batch.size() + " cities one by one");
+                    return answered;
+                }
+
+                int julianStartDay = getJulianStartDay();
+                long downloadStart = SyncTimer.start();
+                List<ForecastJsonParser.Forecast> forecasts = ForecastJsonParser.parseGroup(
+                        response.getBody(), julianStartDay);
+                timer.record(label, MetricsEntry.PHASE_DOWNLOAD,
+                        SyncTimer.start() - downloadStart, response.getWireBytes());
+                mTrafficStats.record(response.getWireBytes(), response.getDecodedBytes());
+
+                Map<Long, ForecastJsonParser.Forecast> byCityId =
+                        new HashMap<Long, ForecastJsonParser.Forecast>();
+                for (ForecastJsonParser.Forecast forecast : forecasts) {
+                    if (forecast.messageCode == HttpURLConnection.HTTP_OK) {
+                        byCityId.put(forecast.cityId, forecast);
+                    }
+                }
+                for (LocationForecast request : batch) {
+                    ForecastJsonParser.Forecast forecast = byCityId.get(request.cityId);
+                    if (forecast == null) {
+                        continue;
+                    }
+                    request.attempts++;
+                    request.forecast = forecast;
+                    request.status = LOCATION_STATUS_OK;
+                    request.julianStartDay = julianStartDay;
+                    answered.add(request);
+                }
+            } finally {
+                response.close();
             }
-            forecastJsonStr = buffer.toString();
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
         } catch (IOException e) {
-            Log.e(LOG_TAG, "Error ", e);
-            // If the code didn't successfully get the weather data, there's no point in attempting
-            // to parse it.
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
+            Log.e(LOG_TAG, "Error fetching forecast group", e);
+            mCircuitBreaker.onFailure();
         } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
-        } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
-            if (reader != null) {
+            Log.e(LOG_TAG, "Error parsing forecast group", e);
+        }
+        if (answered.size() < batch.size()) {
+            Log.d(LOG_TAG, "Group answered " + answered.size() + " of " + batch.size()
+                    + " cities, fetching the rest one by one");
+        }
+        return answered;
+    }
+
+    /**
+     * Fetch forecasts one location at a time.  A single location is fetched on the calling
+     * thread; several are fetched concurrently on a bounded pool, so the whole sync takes
+     * about as long as the slowest fetch rather than the sum of them.
+     *
+     * @return the outcome of each request, in the order of the requests
+     */
+    private List<LocationForecast> fetchEach(List<LocationForecast> requests) {
+        List<LocationForecast> results = new ArrayList<LocationForecast>(requests.size());
+        if (requests.size() == 1) {
+            results.add(fetchForecast(requests.get(0)));
+            return results;
+        }
+
+        List<Callable<LocationForecast>> tasks =
+                new ArrayList<Callable<LocationForecast>>(requests.size());
+        for (final LocationForecast request : requests) {
+            tasks.add(new Callable<LocationForecast>() {
+                @Override
+                public LocationForecast call() {
+                    return fetchForecast(request);
+                }
+            });
+        }
+        try {
+            // invokeAll hands back the futures in the order of the tasks
+            List<Future<LocationForecast>> futures = sFetchExecutor.invokeAll(tasks);
+            for (int i = 0; i < futures.size(); i++) {
                 try {
-                    reader.close();
-                } catch (final IOException e) {
-                    Log.e(LOG_TAG, "Error closing stream", e);
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    // A bug in one fetch shouldn't cost the other locations their forecasts
+                    Log.e(LOG_TAG, "Error ", e);
+                    LocationForecast failed = requests.get(i);
+                    failed.forecast = null;
+                    failed.notModified = false;
+                    failed.status = LOCATION_STATUS_SERVER_DOWN;
+                    failed.transientFailure = true;
+                    results.add(failed);
                 }
             }
+        } catch (InterruptedException e) {
+            Log.w(LOG_TAG, "Sync interrupted while fetching forecasts", e);
+            Thread.currentThread().interrupt();
         }
-        return;
+        return results;
     }
 
     /**
-     * Take the String representing the complete forecast in JSON Format and
-     * pull out the data we need to construct the Strings needed for the wireframes.
+     * Fetch the forecast at the given URL and store it for the location.
+     *
+     * The request carries the validators saved from the last forecast we stored for this URL,
+     * so when nothing has changed the server answers 304 Not Modified and we skip the parse,
+     * the database writes and the widget, Muzei and notification updates entirely.
      *
-     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
-     * into an Object hierarchy for us.
+     * @param url the OpenWeatherMap forecast URL to fetch
+     * @param locationSetting the location string the forecast is stored under
+     * @param syncResult counts the rows written
      */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                        String locationSetting)
-            throws JSONException {
-
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
-
-        // These are the names of the JSON objects that need to be extracted.
-
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
+    void syncForecast(URL url, String locationSetting, SyncResult syncResult) {
+        SyncTimer timer = new SyncTimer();
+        LocationForecast request = new LocationForecast(locationSetting, url, timer);
+        request.lane = ApiQuotaLimiter.LANE_USER;
+        LocationForecast result = fetchForecast(request);
+        if (commitForecast(result, Collections.<String>emptyList(), syncResult) > 0) {
+            notifyConsumers(timer);
+        }
+        timer.finish(getContext().getContentResolver());
+    }
 
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
+    /**
+     * Download and parse one location's forecast.  If the same forecast is already being
+     * fetched, on another thread or by another sync, wait for that fetch and share its result
+     * rather than downloading it again.
+     * Safe to call from any thread: it does not write to the database.
+     *
+     * @return the request with its outcome filled in, or the equivalent request that was
+     *         already in flight
+     */
+    private LocationForecast fetchForecast(final LocationForecast request) {
+        return mCoalescer.fetchOnce(request.locationSetting + " " + request.url,
+                new Callable<LocationForecast>() {
+                    @Override
+                    public LocationForecast call() {
+                        fetchForecastWithRetries(request);
+                        return request;
+                    }
+                });
+    }
 
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
+    /**
+     * Download and parse one location's forecast, recording the outcome in the request.
+     * Transient failures are retried after a jittered exponential delay.
+     */
+    private void fetchForecastWithRetries(LocationForecast request) {
+        while (true) {
+            fetchForecastOnce(request);
+            if (!request.transientFailure || request.attempts >= SyncRetryPolicy.MAX_ATTEMPTS) {
+                return;
+            }
+            long delay = mRetryPolicy.getRetryDelayMillis(request.attempts);
+            Log.d(LOG_TAG, request.locationSetting + ": attempt " + request.attempts
+                    + " failed, retrying in " + delay + "ms");
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                // The sync was cancelled; keep the failure we have
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
 
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
+    private void fetchForecastOnce(LocationForecast request) {
+        request.attempts++;
+        request.transientFailure = false;
+        request.parseFailure = false;
+        request.rateLimited = false;
+        request.quotaExhausted = false;
+        request.circuitOpen = false;
+
+        // While the server is known to be down, don't wait on it just to fail
+        if (!mCircuitBreaker.allowRequest()) {
+            request.circuitOpen = true;
+            return;
+        }
+        if (!mQuotaLimiter.acquire(request.lane)) {
+            mCircuitBreaker.onCancelled();
+            request.quotaExhausted = true;
+            return;
+        }
 
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
+        downloadForecast(request);
+        if (request.transientFailure) {
+            mCircuitBreaker.onFailure();
+        } else {
+            mCircuitBreaker.onSuccess();
+        }
+    }
 
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
+    private void downloadForecast(LocationForecast request) {
+        // If the stored forecast has gone (expired, or the database was wiped) a 304 would
+        // leave us with nothing to show, so only ask conditionally while we still have data.
+        if (!hasStoredForecast(request.locationSetting)) {
+            mValidatorStore.clear(request.url);
+        }
 
-        final String OWM_MESSAGE_CODE = "cod";
+        Map<String, String> requestHeaders = new HashMap<String, String>();
+        mValidatorStore.addConditionalHeaders(request.url, requestHeaders);
 
         try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
-            Context context = getContext();
+            // Create the request to OpenWeatherMap, and open the connection
+            ForecastHttpClient.Response response = mHttpClient.get(request.url, requestHeaders);
+            request.timer.record(request.locationSetting, MetricsEntry.PHASE_DNS,
+                    response.dnsMillis, 0);
+            request.timer.record(request.locationSetting, MetricsEntry.PHASE_CONNECT,
+                    response.connectMillis, 0);
+            request.timer.record(request.locationSetting, MetricsEntry.PHASE_FIRST_BYTE,
+                    response.firstByteMillis, 0);
+            try {
+                if (response.code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    request.notModified = true;
+                    request.status = LOCATION_STATUS_OK;
+                    return;
+                }
+                if (response.code == HTTP_TOO_MANY_REQUESTS) {
+                    markRateLimited(request, response);
+                    return;
+                }
+                if (response.code >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                    request.status = LOCATION_STATUS_SERVER_DOWN;
+                    request.transientFailure = true;
+                    return;
+                }
+                if (response.code == HttpURLConnection.HTTP_NOT_FOUND) {
+                    request.status = LOCATION_STATUS_INVALID;
+                    return;
+                }
+
+                request.julianStartDay = getJulianStartDay();
+
+                // Servers that ignore our validators often still send the same bytes as last
+                // time, so hash the body before parsing it.  Rows are dated from the start day,
+                // so an identical body only means an identical forecast on the same day.
+                long downloadStart = SyncTimer.start();
+                byte[] body = readBody(response.getBody());
+                request.timer.record(request.locationSetting, MetricsEntry.PHASE_DOWNLOAD,
+                        SyncTimer.start() - downloadStart, response.getWireBytes());
+                String contentHash = request.julianStartDay + ":" + hash(body);
+
+                Log.d(LOG_TAG, "Downloaded " + response.getWireBytes() + " bytes, decoded to "
+                        + response.getDecodedBytes());
+                mTrafficStats.record(response.getWireBytes(), response.getDecodedBytes());
+
+                // Only a good forecast's hash is stored, so a match is already in the database;
+                // skip the parse, the writes and the consumers, like a 304
+                if (contentHash.equals(mValidatorStore.getContentHash(request.url))) {
+                    request.notModified = true;
+                    request.status = LOCATION_STATUS_OK;
+                    return;
+                }
 
-            // do we have an error?
-            if ( forecastJson.has(OWM_MESSAGE_CODE) ) {
-                int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
+                long parseStart = SyncTimer.start();
+                ForecastJsonParser.Forecast forecast = ForecastJsonParser.parse(
+                        new ByteArrayInputStream(body), request.julianStartDay);
+                request.timer.record(request.locationSetting, MetricsEntry.PHASE_PARSE,
+                        parseStart);
 
-                switch (errorCode) {
+                // do we have an error?
+                switch (forecast.messageCode) {
                     case HttpURLConnection.HTTP_OK:
+                        request.status = LOCATION_STATUS_OK;
+                        request.forecast = forecast;
+                        request.etag = response.getHeaderField(ForecastValidatorStore.HEADER_ETAG);
+                        request.lastModified = response.getHeaderField(
+                                ForecastValidatorStore.HEADER_LAST_MODIFIED);
+                        request.contentHash = contentHash;
                         break;
                     case HttpURLConnection.HTTP_NOT_FOUND:
-                        setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
-                        return;
+                        request.status = LOCATION_STATUS_INVALID;
+                        break;
+                    case HTTP_TOO_MANY_REQUESTS:
+                        markRateLimited(request, response);
+                        break;
                     default:
-                        setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                        return;
+                        request.status = LOCATION_STATUS_SERVER_DOWN;
+                        request.transientFailure =
+                                forecast.messageCode >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+                        break;
                 }
+            } finally {
+                response.close();
             }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error ", e);
+            // If the code didn't successfully get the weather data, there's no point in attempting
+            // to parse it.
+            request.status = LOCATION_STATUS_SERVER_DOWN;
+            request.transientFailure = true;
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            request.status = LOCATION_STATUS_SERVER_INVALID;
+            request.parseFailure = true;
+        }
+    }
 
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
-
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
-
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
-
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
-
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
-
-            // OWM returns daily forecasts based upon the local time of the city that is being
-            // asked for, which means that we need to know the GMT offset to translate this data
-            // properly.
+    /**
+     * Log the running totals the sync keeps, so they can be read off a bug report.
+     */
+    private void logSyncStats() {
+        Log.d(LOG_TAG, "Traffic: " + mTrafficStats.getDownloadCount() + " downloads, "
+                + mTrafficStats.getTotalWireBytes() + " bytes on the wire, "
+                + mTrafficStats.getTotalDecodedBytes() + " decoded");
+        Log.d(LOG_TAG, "Coalescer: " + mCoalescer.getCoalescedRequestCount() + " of "
+                + mCoalescer.getRequestCount() + " sync requests coalesced, "
+                + mCoalescer.getSharedFetchCount() + " fetches shared");
+        Log.d(LOG_TAG, "Sync interval: " + mIntervalScheduler.getInterval() + "s ("
+                + mIntervalScheduler.getReason() + ")");
+        Log.d(LOG_TAG, "Prefetch: " + mPrefetchStats.getOpportunisticSyncs()
+                + " opportunistic syncs (" + mPrefetchStats.getOpportunisticFetches()
+                + " fetches), " + mPrefetchStats.getForcedSyncs() + " forced ("
+                + mPrefetchStats.getForcedFetches() + " fetches, "
+                + mPrefetchStats.getForcedMeteredSyncs() + " on a metered network)");
+    }
 
-            // Since this data is also sent in-order and the first day is always the
-            // current day, we're going to take advantage of that to get a nice
-            // normalized UTC date for all of our weather.
+    /**
+     * @return the julian day of the first day of a forecast fetched now
+     */
+    private static int getJulianStartDay() {
+        // OWM returns daily forecasts based upon the local time of the city that is
+        // being asked for, which means that we need to know the GMT offset to
+        // translate this data properly.
 
-            Time dayTime = new Time();
-            dayTime.setToNow();
+        // Since this data is also sent in-order and the first day is always the
+        // current day, we're going to take advantage of that to get a nice
+        // normalized UTC date for all of our weather.
 
-            // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+        Time dayTime = new Time();
+        dayTime.setToNow();
 
-            // now we work exclusively in UTC
-            dayTime = new Time();
+        // we start at the day returned by local time. Otherwise this is a mess.
+        return Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+    }
 
-            for(int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
+    /**
+     * Read the whole of a response body.  A daily forecast is a few kilobytes, so holding it
+     * in memory is cheaper than parsing a body we may turn out to have already stored.
+     */
+    private static byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
 
-                double high;
-                double low;
+    private static String hash(byte[] body) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return Base64.encodeToString(digest.digest(body), Base64.NO_WRAP);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android device has SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
 
-                String description;
-                int weatherId;
+    private static void markRateLimited(LocationForecast request,
+                                        ForecastHttpClient.Response response) {
+        request.status = LOCATION_STATUS_SERVER_DOWN;
+        request.rateLimited = true;
+        request.retryAfterSeconds = 0;
+        String retryAfter = response.getHeaderField("Retry-After");
+        if (retryAfter != null) {
+            try {
+                request.retryAfterSeconds = Long.parseLong(retryAfter.trim());
+            } catch (NumberFormatException e) {
+                // An HTTP-date; fall back to the policy's default delay
+            }
+        }
+    }
 
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
+    /**
+     * Fill in the failure counters of the SyncResult, and tell the framework when to try again
+     * if we were rate limited or some locations could not be fetched.
+     *
+     * @return true if every location was fetched
+     */
+    private boolean reportFailures(List<LocationForecast> results, SyncResult syncResult) {
+        boolean transientFailure = false;
+        boolean quotaExhausted = false;
+        boolean circuitOpen = false;
+        long retryAfterSeconds = -1;
+        for (LocationForecast result : results) {
+            if (result.circuitOpen) {
+                circuitOpen = true;
+            } else if (result.quotaExhausted) {
+                quotaExhausted = true;
+            } else if (result.rateLimited) {
+                retryAfterSeconds = Math.max(retryAfterSeconds, result.retryAfterSeconds);
+            } else if (result.transientFailure) {
+                transientFailure = true;
+                syncResult.stats.numIoExceptions++;
+            } else if (result.parseFailure) {
+                syncResult.stats.numParseExceptions++;
+            }
+        }
 
-                // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay+i);
+        // delayUntil is in seconds since the epoch
+        if (retryAfterSeconds >= 0) {
+            syncResult.delayUntil = mRetryPolicy.onRateLimited(retryAfterSeconds);
+            Log.d(LOG_TAG, "Rate limited, next sync not before " + syncResult.delayUntil);
+            return false;
+        } else if (circuitOpen) {
+            // The circuit knows when it will next let a request through
+            syncResult.delayUntil = mCircuitBreaker.getProbeTime() / 1000 + 1;
+            Log.d(LOG_TAG, "Server down, next sync not before " + syncResult.delayUntil);
+            return false;
+        } else if (quotaExhausted) {
+            // Our own limit, not the server's, so there's nothing to back off from; just come
+            // back once the background lane has a token again
+            syncResult.delayUntil = (System.currentTimeMillis()
+                    + mQuotaLimiter.getBackgroundWaitMillis()) / 1000 + 1;
+            Log.d(LOG_TAG, "Out of API quota, next sync not before " + syncResult.delayUntil);
+            return false;
+        } else if (transientFailure) {
+            syncResult.delayUntil = mRetryPolicy.onSyncFailed();
+            Log.d(LOG_TAG, "Sync failed, next sync not before " + syncResult.delayUntil);
+            return false;
+        }
+        mRetryPolicy.onSyncSucceeded();
+        return true;
+    }
 
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
+    /**
+     * Write a fetched forecast into the database and record the location's status, for the
+     * location it was fetched for and for each of its aliases.
+     * Must be called on the sync thread.
+     *
+     * @param aliases other location settings that resolve to the same city
+     * @param syncResult receives the insert, delete and skip counts
+     * @return the most forecast days written or pruned under any one of the location settings;
+     *         when 0 nothing observable changed and the widget, Muzei and notification updates
+     *         can be skipped
+     */
+    private int commitForecast(LocationForecast result, List<String> aliases,
+                               SyncResult syncResult) {
+        Context context = getContext();
+        if (result.quotaExhausted || result.circuitOpen) {
+            // Never asked for; the stored forecast and its status still stand
+            Log.d(LOG_TAG, result.locationSetting + ": skipped, "
+                    + (result.circuitOpen ? "server down" : "out of API quota"));
+            syncResult.stats.numSkippedEntries++;
+            return 0;
+        }
+        setLocationStatus(context, result.locationSetting, result.status);
+        for (String alias : aliases) {
+            setLocationStatus(context, alias, result.status);
+        }
+        if (result.notModified) {
+            Log.d(LOG_TAG, result.locationSetting + ": forecast not modified");
+            syncResult.stats.numSkippedEntries++;
+            return 0;
+        }
+        ForecastJsonParser.Forecast forecast = result.forecast;
+        if (forecast == null) {
+            return 0;
+        }
 
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
+        // delete old data so we don't build up an endless history; the aliases' writes
+        // find nothing left to prune
+        long pruneDate = new Time().setJulianDay(result.julianStartDay - 1);
+        int changed = writeForecast(result, result.locationSetting, pruneDate, syncResult);
+        int mostChanged = changed;
+        for (String alias : aliases) {
+            int aliasChanged = writeForecast(result, alias, pruneDate, syncResult);
+            changed += aliasChanged;
+            mostChanged = Math.max(mostChanged, aliasChanged);
+        }
+        mValidatorStore.save(result.url, result.etag, result.lastModified, result.contentHash);
+        Log.d(LOG_TAG, result.locationSetting + ": " + changed + " days written or pruned, of "
+                + forecast.days.size() * (1 + aliases.size()) + " fetched");
+        return mostChanged;
+    }
 
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
+    /**
+     * Store a fetched forecast's days under one location setting, and prune the days on or
+     * before pruneDate, in one transaction.
+     *
+     * @return the number of forecast days written or pruned
+     */
+    private int writeForecast(LocationForecast result, String locationSetting, long pruneDate,
+                              SyncResult syncResult) {
+        ForecastJsonParser.Forecast forecast = result.forecast;
+        long locationId = addLocation(locationSetting, forecast.cityId, forecast.cityName,
+                forecast.cityLatitude, forecast.cityLongitude);
+
+        // Each location gets its own copy of the rows, since they carry its key
+        List<ContentValues> days = new ArrayList<ContentValues>(forecast.days.size());
+        for (ContentValues day : forecast.days) {
+            ContentValues weatherValues = new ContentValues(day);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
+            days.add(weatherValues);
+        }
 
-                ContentValues weatherValues = new ContentValues();
+        // Insert only the days that are new or have changed since the last sync
+        long replaceStart = SyncTimer.start();
+        int changed = mDeltaWriter.write(locationId, days, pruneDate, syncResult.stats);
+        result.timer.record(locationSetting, MetricsEntry.PHASE_REPLACE_FORECAST, replaceStart);
 
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+        // Only once it's stored, so readers never hold a day the database doesn't have
+        publishToday(locationSetting, days);
+        return changed;
+    }
 
-                cVVector.add(weatherValues);
+    /**
+     * If the forecast is for the location in the settings, publish its first day from today
+     * on, so the consumers of the sync can show it without querying for it.
+     */
+    private void publishToday(String locationSetting, List<ContentValues> days) {
+        if (!locationSetting.equals(Utility.getPreferredLocation(getContext()))) {
+            return;
+        }
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        for (ContentValues day : days) {
+            long date = WeatherContract.normalizeDate(
+                    day.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
+            if (date >= today) {
+                ForecastBus.publish(new ForecastSnapshot(locationSetting, date,
+                        day.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID),
+                        day.getAsString(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC),
+                        day.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP),
+                        day.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP)));
+                return;
             }
+        }
+    }
 
-            int inserted = 0;
-            // add to database
-            if ( cVVector.size() > 0 ) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
-
-                // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[] {Long.toString(dayTime.setJulianDay(julianStartDay-1))});
+    /**
+     * @return true if the database holds forecast rows from today onwards for the location.
+     */
+    private boolean hasStoredForecast(String locationSetting) {
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                        locationSetting, System.currentTimeMillis()),
+                new String[]{WeatherContract.WeatherEntry.TABLE_NAME + "." +
+                        WeatherContract.WeatherEntry._ID},
+                null,
+                null,
+                null);
+        if (cursor == null) {
+            return false;
+        }
+        boolean hasForecast = cursor.moveToFirst();
+        cursor.close();
+        return hasForecast;
+    }
 
+    /**
+     * Let the widgets, Muzei and the notification know the forecast has changed.  They run
+     * on the post-sync pipeline, so this returns without waiting for them.
+     */
+    private void notifyConsumers(SyncTimer timer) {
+        List<PostSyncPipeline.Consumer> consumers = new ArrayList<PostSyncPipeline.Consumer>();
+        consumers.add(new PostSyncPipeline.Consumer(MetricsEntry.PHASE_UPDATE_WIDGETS,
+                UPDATE_WIDGETS_DEADLINE_MILLIS, new Runnable() {
+            @Override
+            public void run() {
                 updateWidgets();
+            }
+        }));
+        consumers.add(new PostSyncPipeline.Consumer(MetricsEntry.PHASE_UPDATE_MUZEI,
+                UPDATE_MUZEI_DEADLINE_MILLIS, new Runnable() {
+            @Override
+            public void run() {
                 updateMuzei();
+            }
+        }));
+        consumers.add(new PostSyncPipeline.Consumer(MetricsEntry.PHASE_NOTIFY_WEATHER,
+                NOTIFY_WEATHER_DEADLINE_MILLIS, new Runnable() {
+            @Override
+            public void run() {
                 notifyWeather();
             }
-            Log.d(LOG_TAG, "Sync Complete. " + cVVector.size() + " Inserted");
-            setLocationStatus(getContext(), LOCATION_STATUS_OK);
-
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
-        }
+        }));
+        PostSyncPipeline.dispatch(consumers, timer, getContext().getContentResolver());
     }
 
     private void updateWidgets() {
@@ -413,18 +1126,14 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
 
             if (System.currentTimeMillis() - lastSync >= DAY_IN_MILLIS) {
                 // Last sync was more than 1 day ago, let's send a notification with the weather.
-                String locationQuery = Utility.getPreferredLocation(context);
-
-                Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
-
-                // we'll query our contentProvider, as always
-                Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
+                // The sync has just published today's forecast, so there's no need to query.
+                ForecastSnapshot today = ForecastBus.getToday(context);
 
-                if (cursor.moveToFirst()) {
-                    int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-                    double high = cursor.getDouble(INDEX_MAX_TEMP);
-                    double low = cursor.getDouble(INDEX_MIN_TEMP);
-                    String desc = cursor.getString(INDEX_SHORT_DESC);
+                if (today != null) {
+                    int weatherId = today.weatherId;
+                    double high = today.maxTemp;
+                    double low = today.minTemp;
+                    String desc = today.shortDesc;
 
                     int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
                     Resources resources = context.getResources();
@@ -448,10 +1157,13 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                         largeIcon = Glide.with(context)
                                 .load(artUrl)
                                 .asBitmap()
+                                .diskCacheStrategy(DiskCacheStrategy.ALL)
                                 .error(artResourceId)
                                 .fitCenter()
-                                .into(largeIconWidth, largeIconHeight).get();
-                    } catch (InterruptedException | ExecutionException e) {
+                                .into(largeIconWidth, largeIconHeight)
+                                .get(LARGE_ICON_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                        // Better the bundled art than a late notification
                         Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
                         largeIcon = BitmapFactory.decodeResource(resources, artResourceId);
                     }
@@ -498,9 +1210,8 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                     //refreshing last sync
                     SharedPreferences.Editor editor = prefs.edit();
                     editor.putLong(lastNotificationKey, System.currentTimeMillis());
-                    editor.commit();
+                    editor.apply();
                 }
-                cursor.close();
             }
         }
     }
@@ -509,18 +1220,21 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
      * Helper method to handle insertion of a new location in the weather database.
      *
      * @param locationSetting The location string used to request updates from the server.
+     * @param cityId The id openweathermap gave the city
      * @param cityName A human-readable city name, e.g "Mountain View"
      * @param lat the latitude of the city
      * @param lon the longitude of the city
      * @return the row ID of the added location.
      */
-    long addLocation(String locationSetting, String cityName, double lat, double lon) {
+    long addLocation(String locationSetting, long cityId, String cityName, double lat,
+                     double lon) {
         long locationId;
 
         // First, check if the location with this city name exists in the db
         Cursor locationCursor = getContext().getContentResolver().query(
                 WeatherContract.LocationEntry.CONTENT_URI,
-                new String[]{WeatherContract.LocationEntry._ID},
+                new String[]{WeatherContract.LocationEntry._ID,
+                        WeatherContract.LocationEntry.COLUMN_CITY_ID},
                 WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
                 new String[]{locationSetting},
                 null);
@@ -528,6 +1242,19 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         if (locationCursor.moveToFirst()) {
             int locationIdIndex = locationCursor.getColumnIndex(WeatherContract.LocationEntry._ID);
             locationId = locationCursor.getLong(locationIdIndex);
+
+            // Fill in the city id of a row saved without one, so LocationResolver can match it
+            int cityIdIndex = locationCursor.getColumnIndex(
+                    WeatherContract.LocationEntry.COLUMN_CITY_ID);
+            if (locationCursor.getLong(cityIdIndex) == 0 && cityId != 0) {
+                ContentValues cityIdValues = new ContentValues();
+                cityIdValues.put(WeatherContract.LocationEntry.COLUMN_CITY_ID, cityId);
+                getContext().getContentResolver().update(
+                        WeatherContract.LocationEntry.CONTENT_URI,
+                        cityIdValues,
+                        WeatherContract.LocationEntry._ID + " = ?",
+                        new String[]{Long.toString(locationId)});
+            }
         } else {
             // Now that the content provider is set up, inserting rows of data is pretty simple.
             // First create a ContentValues object to hold the data you want to insert.
@@ -539,6 +1266,7 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
             locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
             locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
             locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_ID, cityId);
 
             // Finally, insert location data into the database.
             Uri insertedUri = getContext().getContentResolver().insert(
@@ -579,6 +1307,11 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
      * @param context The context used to access the account service
      */
     public static void syncImmediately(Context context) {
+        // A sync already pending or running for this location will do the same work
+        if (!SyncCoalescer.getInstance(context)
+                .onSyncRequested(Utility.getPreferredLocation(context))) {
+            return;
+        }
         Bundle bundle = new Bundle();
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
@@ -586,6 +1319,23 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                 context.getString(R.string.content_authority), bundle);
     }
 
+    /**
+     * Helper method to have the sync adapter sync soon on behalf of something other than the
+     * user, such as a weather alert or the watch.  The sync only spends the API quota a
+     * refresh the user asks for can spare.
+     * @param context The context used to access the account service
+     */
+    public static void syncInBackground(Context context) {
+        if (!SyncCoalescer.getInstance(context)
+                .onSyncRequested(Utility.getPreferredLocation(context))) {
+            return;
+        }
+        Bundle bundle = new Bundle();
+        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
+        ContentResolver.requestSync(getSyncAccount(context),
+                context.getString(R.string.content_authority), bundle);
+    }
+
     /**
      * Helper method to get the fake account to be used with SyncAdapter, or make a new one
      * if the fake account doesn't exist yet.  If we make a new account, we call the
@@ -644,11 +1394,12 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
 
     public static void initializeSyncAdapter(Context context) {
         getSyncAccount(context);
+        PrefetchJobService.schedule(context);
     }
 
     /**
-     * Sets the location status into shared preference.  This function should not be called from
-     * the UI thread because it uses commit to write to the shared preferences.
+     * Sets the location status into shared preference.  The write is applied in the
+     * background; listeners and readers in this process see the new status straight away.
      * @param c Context to get the PreferenceManager from.
      * @param locationStatus The IntDef value to set
      */
@@ -656,6 +1407,26 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(c);
         SharedPreferences.Editor spe = sp.edit();
         spe.putInt(c.getString(R.string.pref_location_status_key), locationStatus);
-        spe.commit();
+        spe.apply();
+    }
+
+    /**
+     * Sets the status of one synced location.  Each location keeps its own status; the status
+     * of the location in the settings is also mirrored to the shared preference the UI watches.
+     * @param c Context to get the SharedPreferences from.
+     * @param locationSetting The location the status applies to
+     * @param locationStatus The IntDef value to set
+     */
+    static private void setLocationStatus(Context c, String locationSetting,
+                                          @LocationStatus int locationStatus) {
+        SharedPreferences statuses =
+                c.getSharedPreferences(LOCATION_STATUS_PREFS, Context.MODE_PRIVATE);
+        if (statuses.getInt(locationSetting, LOCATION_STATUS_UNKNOWN) != locationStatus) {
+            statuses.edit().putInt(locationSetting, locationStatus).apply();
+        }
+        if (locationSetting.equals(Utility.getPreferredLocation(c))
+                && Utility.getLocationStatus(c) != locationStatus) {
+            setLocationStatus(c, locationStatus);
+        }
     }
 }
\ No newline at end of file
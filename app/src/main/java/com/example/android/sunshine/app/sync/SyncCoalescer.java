@@ -0,0 +1,176 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Folds bursts of sync requests for the same location into one.
+ *
+ * syncImmediately is called from settings changes, account creation and elsewhere, often
+ * several times in quick succession.  A request for a location that already has a sync
+ * pending or running is dropped, since that sync will bring the location up to date anyway.
+ * Below that, concurrent fetches of the same URL share a single download.  Both kinds of
+ * saving are counted, and the counts logged at the end of every sync, so we can see how much
+ * work this avoids.
+ */
+public class SyncCoalescer {
+    private static final String LOG_TAG = SyncCoalescer.class.getSimpleName();
+
+    private static final String PREFS_NAME = "sync_coalescer";
+    private static final String KEY_REQUESTS = "requests";
+    private static final String KEY_COALESCED_REQUESTS = "coalesced_requests";
+    private static final String KEY_SHARED_FETCHES = "shared_fetches";
+
+    // A requested sync that hasn't started within this window (no network, say) no longer
+    // absorbs new requests, so a later request still gets through.
+    private static final long PENDING_WINDOW_MILLIS = 30 * 1000;
+
+    private static SyncCoalescer sInstance;
+
+    private final SharedPreferences mPrefs;
+
+    // Location -> elapsed realtime the sync was requested at, until that sync starts
+    private final Map<String, Long> mPending = new HashMap<String, Long>();
+    // Locations being synced right now
+    private final Set<String> mInFlight = new HashSet<String>();
+    // Fetch key -> the fetch everyone asking for that key waits on
+    private final ConcurrentHashMap<String, FutureTask<?>> mFetches =
+            new ConcurrentHashMap<String, FutureTask<?>>();
+
+    public static synchronized SyncCoalescer getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SyncCoalescer(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private SyncCoalescer(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Called before requesting a sync of the location.
+     *
+     * @return true if the sync should be requested, false if a sync already pending or in
+     *         flight for the location covers it
+     */
+    public synchronized boolean onSyncRequested(String locationSetting) {
+        increment(KEY_REQUESTS);
+        long now = SystemClock.elapsedRealtime();
+        Long requestedAt = mPending.get(locationSetting);
+        if (mInFlight.contains(locationSetting)
+                || (requestedAt != null && now - requestedAt < PENDING_WINDOW_MILLIS)) {
+            increment(KEY_COALESCED_REQUESTS);
+            Log.d(LOG_TAG, "Coalesced sync request for " + locationSetting);
+            return false;
+        }
+        mPending.put(locationSetting, now);
+        return true;
+    }
+
+    /**
+     * Called by the sync adapter when it starts syncing the given locations.
+     */
+    synchronized void onSyncStarted(Collection<String> locationSettings) {
+        for (String locationSetting : locationSettings) {
+            mPending.remove(locationSetting);
+            mInFlight.add(locationSetting);
+        }
+        // Forget requests whose sync never arrived
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Long> requestTimes = mPending.values().iterator();
+        while (requestTimes.hasNext()) {
+            if (now - requestTimes.next() >= PENDING_WINDOW_MILLIS) {
+                requestTimes.remove();
+            }
+        }
+    }
+
+    /**
+     * Called by the sync adapter when it has finished with the given locations.
+     */
+    synchronized void onSyncFinished(Collection<String> locationSettings) {
+        mInFlight.removeAll(locationSettings);
+    }
+
+    /**
+     * Run the fetch for the key unless the same fetch is already running, in which case wait
+     * for it and return its result instead.
+     *
+     * @param key identifies the fetch, e.g. its URL
+     * @param fetch does the work; must not throw
+     * @return the result of whichever fetch ran
+     */
+    @SuppressWarnings("unchecked")
+    <V> V fetchOnce(String key, Callable<V> fetch) {
+        FutureTask<V> task = new FutureTask<V>(fetch);
+        FutureTask<V> running = (FutureTask<V>) mFetches.putIfAbsent(key, task);
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                mFetches.remove(key, task);
+            }
+            running = task;
+        } else {
+            increment(KEY_SHARED_FETCHES);
+            Log.d(LOG_TAG, "Sharing in-flight fetch of " + key);
+        }
+
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return running.get();
+                } catch (InterruptedException e) {
+                    // We still need the result; restore the flag once we have it
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the number of sync requests received
+     */
+    public long getRequestCount() {
+        return mPrefs.getLong(KEY_REQUESTS, 0);
+    }
+
+    /**
+     * @return the number of sync requests dropped because another sync already covered them
+     */
+    public long getCoalescedRequestCount() {
+        return mPrefs.getLong(KEY_COALESCED_REQUESTS, 0);
+    }
+
+    /**
+     * @return the number of fetches that waited on an identical fetch instead of downloading
+     */
+    public long getSharedFetchCount() {
+        return mPrefs.getLong(KEY_SHARED_FETCHES, 0);
+    }
+
+    private synchronized void increment(String key) {
+        mPrefs.edit().putLong(key, mPrefs.getLong(key, 0) + 1).apply();
+    }
+}
@@ -0,0 +1,187 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.util.Log;
+
+/**
+ * Picks the periodic sync interval from how much the forecast has been changing and from the
+ * state of the device.
+ *
+ * Forecasts for most places change slowly, so syncing every 3 hours mostly downloads the same
+ * data.  After a couple of syncs in a row that change nothing, the interval doubles, up to
+ * MAX_INTERVAL.  A sync that changes several days means the weather is on the move, so the
+ * interval halves, down to MIN_INTERVAL.  On top of that, the interval is halved while the
+ * device is charging on an unmetered network, where syncing costs the user nothing, and
+ * doubled while the battery is low.  Where the prefetch job has synced within the last day,
+ * it takes care of syncing while it costs nothing, so at other times the interval is doubled.
+ *
+ * The interval in use and the reason for it are kept in preferences, and logged at the end of
+ * every sync.
+ */
+public class SyncIntervalScheduler {
+    private static final String LOG_TAG = SyncIntervalScheduler.class.getSimpleName();
+
+    private static final String PREFS_NAME = "sync_interval";
+    private static final String KEY_BASE_INTERVAL = "base_interval";
+    private static final String KEY_UNCHANGED_SYNCS = "unchanged_syncs";
+    private static final String KEY_INTERVAL = "interval";
+    private static final String KEY_REASON = "reason";
+
+    // Bounds on the interval, in seconds: 1 hour to 12 hours
+    static final int MIN_INTERVAL = 60 * 60;
+    static final int MAX_INTERVAL = 60 * 60 * 12;
+
+    // Syncs in a row that change nothing before the interval is lengthened
+    private static final int UNCHANGED_SYNCS_BEFORE_LENGTHENING = 2;
+
+    // A sync that changes at least this many days counts as volatile
+    private static final int VOLATILE_CHANGED_DAYS = 3;
+
+    // How recently the prefetch job must have synced for the periodic sync to lean on it
+    private static final long PREFETCH_RECENT_MILLIS = 24 * 60 * 60 * 1000;
+
+    // Battery percentage below which we sync less often when not charging
+    private static final int LOW_BATTERY_PERCENT = 15;
+
+    public static final String REASON_DEFAULT = "default";
+    public static final String REASON_STABLE = "stable";
+    public static final String REASON_VOLATILE = "volatile";
+    public static final String REASON_STEADY = "steady";
+    public static final String REASON_LOW_BATTERY = "low battery";
+    public static final String REASON_CHARGING_UNMETERED = "charging on unmetered network";
+    public static final String REASON_PREFETCH = "prefetch job";
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+
+    public SyncIntervalScheduler(Context context) {
+        mContext = context.getApplicationContext();
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Records a sync in which every location was fetched, and reschedules the periodic sync
+     * if the interval has changed.
+     *
+     * @param changedDays the most forecast days the sync wrote or pruned for any one location
+     */
+    synchronized void onSyncCompleted(int changedDays) {
+        int base = mPrefs.getInt(KEY_BASE_INTERVAL, SunshineSyncAdapter.SYNC_INTERVAL);
+        int unchangedSyncs = mPrefs.getInt(KEY_UNCHANGED_SYNCS, 0);
+        String reason;
+
+        if (changedDays >= VOLATILE_CHANGED_DAYS) {
+            base = Math.max(MIN_INTERVAL, base / 2);
+            unchangedSyncs = 0;
+            reason = REASON_VOLATILE;
+        } else if (changedDays == 0) {
+            unchangedSyncs++;
+            if (unchangedSyncs >= UNCHANGED_SYNCS_BEFORE_LENGTHENING) {
+                base = Math.min(MAX_INTERVAL, base * 2);
+                unchangedSyncs = 0;
+            }
+            reason = REASON_STABLE;
+        } else {
+            // A little change is what the default interval is for; drift back towards it
+            if (base > SunshineSyncAdapter.SYNC_INTERVAL) {
+                base = Math.max(SunshineSyncAdapter.SYNC_INTERVAL, base / 2);
+            } else if (base < SunshineSyncAdapter.SYNC_INTERVAL) {
+                base = Math.min(SunshineSyncAdapter.SYNC_INTERVAL, base * 2);
+            }
+            unchangedSyncs = 0;
+            reason = REASON_STEADY;
+        }
+
+        int interval = base;
+        if (isBatteryLow()) {
+            interval = Math.min(MAX_INTERVAL, interval * 2);
+            reason += ", " + REASON_LOW_BATTERY;
+        } else if (isCharging() && isUnmetered()) {
+            interval = Math.max(MIN_INTERVAL, interval / 2);
+            reason += ", " + REASON_CHARGING_UNMETERED;
+        } else if (isPrefetching()) {
+            // The periodic sync only has to cover the time between prefetches
+            interval = Math.min(MAX_INTERVAL, interval * 2);
+            reason += ", " + REASON_PREFETCH;
+        }
+
+        boolean intervalChanged = interval != getInterval();
+        mPrefs.edit()
+                .putInt(KEY_BASE_INTERVAL, base)
+                .putInt(KEY_UNCHANGED_SYNCS, unchangedSyncs)
+                .putInt(KEY_INTERVAL, interval)
+                .putString(KEY_REASON, reason)
+                .apply();
+
+        if (intervalChanged) {
+            Log.d(LOG_TAG, "Sync interval now " + interval + "s (" + reason + ")");
+            SunshineSyncAdapter.configurePeriodicSync(mContext, interval, interval / 3);
+        }
+    }
+
+    /**
+     * @return the periodic sync interval in use, in seconds
+     */
+    public int getInterval() {
+        return mPrefs.getInt(KEY_INTERVAL, SunshineSyncAdapter.SYNC_INTERVAL);
+    }
+
+    /**
+     * @return why the interval in use was chosen
+     */
+    public String getReason() {
+        return mPrefs.getString(KEY_REASON, REASON_DEFAULT);
+    }
+
+    /**
+     * @return true if the prefetch job has actually been syncing lately; a device that is
+     *         never charging on an unmetered network never runs it
+     */
+    private boolean isPrefetching() {
+        if (!PrefetchJobService.isSupported()) {
+            return false;
+        }
+        long lastPrefetch = new PrefetchStats(mContext).getLastOpportunisticSyncTime();
+        return lastPrefetch > 0
+                && System.currentTimeMillis() - lastPrefetch < PREFETCH_RECENT_MILLIS;
+    }
+
+    private Intent getBatteryStatus() {
+        // ACTION_BATTERY_CHANGED is sticky, so this just reads the last broadcast
+        return mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+    }
+
+    private boolean isCharging() {
+        Intent batteryStatus = getBatteryStatus();
+        if (batteryStatus == null) {
+            return false;
+        }
+        int status = batteryStatus.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        return status == BatteryManager.BATTERY_STATUS_CHARGING
+                || status == BatteryManager.BATTERY_STATUS_FULL;
+    }
+
+    private boolean isBatteryLow() {
+        Intent batteryStatus = getBatteryStatus();
+        if (batteryStatus == null || isCharging()) {
+            return false;
+        }
+        int level = batteryStatus.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = batteryStatus.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        return level >= 0 && scale > 0 && level * 100 / scale < LOW_BATTERY_PERCENT;
+    }
+
+    private boolean isUnmetered() {
+        ConnectivityManager cm =
+                (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
+        return activeNetwork != null && activeNetwork.isConnected()
+                && !cm.isActiveNetworkMetered();
+    }
+}
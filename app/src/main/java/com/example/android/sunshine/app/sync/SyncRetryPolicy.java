@@ -0,0 +1,107 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Random;
+
+/**
+ * Decides how long to wait before trying the forecast server again.
+ *
+ * Within a sync, a transient failure (an IO error or a 5xx) is retried a couple of times after
+ * a short, jittered exponential delay.  If the sync still fails, the next sync is pushed back
+ * by a longer jittered exponential delay that grows with every consecutive failed sync.  When
+ * the server tells us our API key is rate limited we stop asking altogether until the time it
+ * gave us, or an hour if it didn't say.
+ */
+class SyncRetryPolicy {
+    private static final String PREFS_NAME = "sync_retry_policy";
+    private static final String KEY_CONSECUTIVE_FAILURES = "consecutive_failures";
+    private static final String KEY_RATE_LIMITED_UNTIL = "rate_limited_until";
+
+    // Attempts per location within a single sync, including the first one
+    static final int MAX_ATTEMPTS = 3;
+
+    private static final long BASE_RETRY_DELAY_MILLIS = 1000;
+    private static final long MAX_RETRY_DELAY_MILLIS = 8 * 1000;
+
+    private static final long BASE_SYNC_DELAY_SECONDS = 60;
+    private static final long MAX_SYNC_DELAY_SECONDS = SunshineSyncAdapter.SYNC_INTERVAL;
+
+    private static final long DEFAULT_RATE_LIMIT_DELAY_SECONDS = 60 * 60;
+
+    private final SharedPreferences mPrefs;
+    private final Random mRandom = new Random();
+
+    SyncRetryPolicy(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @param attempt the number of attempts already made, starting at 1
+     * @return how long to sleep before the next attempt within this sync
+     */
+    long getRetryDelayMillis(int attempt) {
+        return jitter(BASE_RETRY_DELAY_MILLIS, MAX_RETRY_DELAY_MILLIS, attempt - 1);
+    }
+
+    /**
+     * @return the time, in seconds since the epoch, before which we must not call the server
+     *         because the API key is rate limited, or 0 if we are free to call it.
+     */
+    long getRateLimitedUntil() {
+        long until = mPrefs.getLong(KEY_RATE_LIMITED_UNTIL, 0);
+        return until > nowSeconds() ? until : 0;
+    }
+
+    /**
+     * Records that the server rate limited us.
+     *
+     * @param retryAfterSeconds how long the server asked us to wait, or 0 if it didn't say
+     * @return the time, in seconds since the epoch, to delay the next sync until
+     */
+    synchronized long onRateLimited(long retryAfterSeconds) {
+        long delay = retryAfterSeconds > 0 ? retryAfterSeconds : DEFAULT_RATE_LIMIT_DELAY_SECONDS;
+        long until = nowSeconds() + delay;
+        mPrefs.edit().putLong(KEY_RATE_LIMITED_UNTIL, until).apply();
+        return until;
+    }
+
+    /**
+     * Records a sync that still had transient failures after its retries.
+     *
+     * @return the time, in seconds since the epoch, to delay the next sync until
+     */
+    synchronized long onSyncFailed() {
+        int failures = mPrefs.getInt(KEY_CONSECUTIVE_FAILURES, 0) + 1;
+        mPrefs.edit().putInt(KEY_CONSECUTIVE_FAILURES, failures).apply();
+        // Never push the next sync back by less than the base delay
+        return nowSeconds() + BASE_SYNC_DELAY_SECONDS
+                + jitter(BASE_SYNC_DELAY_SECONDS, MAX_SYNC_DELAY_SECONDS, failures - 1);
+    }
+
+    /**
+     * Records a sync in which every location was fetched.
+     */
+    synchronized void onSyncSucceeded() {
+        if (mPrefs.getInt(KEY_CONSECUTIVE_FAILURES, 0) != 0) {
+            mPrefs.edit().putInt(KEY_CONSECUTIVE_FAILURES, 0).apply();
+        }
+    }
+
+    /**
+     * "Full jitter": a uniformly random delay between zero and the capped exponential delay,
+     * which keeps many clients that failed together from retrying together.
+     */
+    private long jitter(long base, long max, int exponent) {
+        long ceiling = max;
+        if (exponent < 30) {
+            ceiling = Math.min(max, base << exponent);
+        }
+        return (long) (mRandom.nextDouble() * ceiling);
+    }
+
+    private static long nowSeconds() {
+        return System.currentTimeMillis() / 1000;
+    }
+}
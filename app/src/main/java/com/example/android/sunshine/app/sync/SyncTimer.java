@@ -0,0 +1,91 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.MetricsEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects how long each phase of one sync took, and writes them all to the metrics table
+ * when the sync is done.  Fetch phases are recorded from the fetch threads, so recording is
+ * thread safe.
+ */
+class SyncTimer {
+    private static final String LOG_TAG = SyncTimer.class.getSimpleName();
+
+    private final long mSyncTime = System.currentTimeMillis();
+    private final long mStart = SystemClock.elapsedRealtime();
+    private final List<ContentValues> mTimings = new ArrayList<ContentValues>();
+
+    /**
+     * @return a timestamp to pass to record() when the phase is over
+     */
+    static long start() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Records a phase that started at the given timestamp and has just ended.
+     *
+     * @param locationSetting the location the phase was for, or null for the whole sync
+     * @param phase one of the MetricsEntry.PHASE_ values
+     */
+    void record(String locationSetting, String phase, long start) {
+        record(locationSetting, phase, SystemClock.elapsedRealtime() - start, 0);
+    }
+
+    /**
+     * Records a phase that has already been timed.
+     *
+     * @param locationSetting the location the phase was for, or null for the whole sync
+     * @param phase one of the MetricsEntry.PHASE_ values
+     * @param duration how long the phase took, in milliseconds
+     * @param bytes the bytes the phase moved, or 0
+     */
+    void record(String locationSetting, String phase, long duration, long bytes) {
+        ContentValues values = new ContentValues();
+        values.put(MetricsEntry.COLUMN_SYNC_TIME, mSyncTime);
+        values.put(MetricsEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        values.put(MetricsEntry.COLUMN_PHASE, phase);
+        values.put(MetricsEntry.COLUMN_DURATION, duration);
+        values.put(MetricsEntry.COLUMN_BYTES, bytes);
+        synchronized (mTimings) {
+            mTimings.add(values);
+        }
+    }
+
+    /**
+     * Records the length of the whole sync and writes every timing so far to the metrics
+     * table.
+     */
+    void finish(ContentResolver contentResolver) {
+        record(null, MetricsEntry.PHASE_SYNC, mStart);
+        flush(contentResolver);
+    }
+
+    /**
+     * Writes the timings recorded since the last flush to the metrics table.  The post-sync
+     * consumers finish after the sync itself, so their timings are flushed separately.
+     */
+    void flush(ContentResolver contentResolver) {
+        ContentValues[] timings;
+        synchronized (mTimings) {
+            timings = mTimings.toArray(new ContentValues[mTimings.size()]);
+            mTimings.clear();
+        }
+        if (timings.length == 0) {
+            return;
+        }
+        try {
+            contentResolver.bulkInsert(MetricsEntry.CONTENT_URI, timings);
+        } catch (RuntimeException e) {
+            // Losing a sync's timings is no reason to fail the sync
+            Log.e(LOG_TAG, "Error saving sync metrics", e);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Records how many bytes each forecast download cost on the wire versus how many bytes of
+ * JSON it decoded to, so we can see what compression is saving us in the field.  The totals
+ * are logged at the end of every sync.
+ */
+public class SyncTrafficStats {
+    private static final String PREFS_NAME = "sync_traffic_stats";
+
+    private static final String KEY_TOTAL_WIRE_BYTES = "total_wire_bytes";
+    private static final String KEY_TOTAL_DECODED_BYTES = "total_decoded_bytes";
+    private static final String KEY_DOWNLOAD_COUNT = "download_count";
+
+    private final SharedPreferences mPrefs;
+
+    public SyncTrafficStats(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Adds one download to the running totals.
+     *
+     * @param wireBytes bytes received from the connection, before decompression
+     * @param decodedBytes bytes of the response body after decompression
+     */
+    synchronized void record(long wireBytes, long decodedBytes) {
+        mPrefs.edit()
+                .putLong(KEY_TOTAL_WIRE_BYTES, getTotalWireBytes() + wireBytes)
+                .putLong(KEY_TOTAL_DECODED_BYTES, getTotalDecodedBytes() + decodedBytes)
+                .putLong(KEY_DOWNLOAD_COUNT, getDownloadCount() + 1)
+                .apply();
+    }
+
+    public long getTotalWireBytes() {
+        return mPrefs.getLong(KEY_TOTAL_WIRE_BYTES, 0);
+    }
+
+    public long getTotalDecodedBytes() {
+        return mPrefs.getLong(KEY_TOTAL_DECODED_BYTES, 0);
+    }
+
+    public long getDownloadCount() {
+        return mPrefs.getLong(KEY_DOWNLOAD_COUNT, 0);
+    }
+}
@@ -2,10 +2,8 @@ package com.example.android.sunshine.app.watch;
 
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
@@ -13,7 +11,11 @@ import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.ForecastBus;
+import com.example.android.sunshine.app.data.ForecastSnapshot;
 import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+import com.example.android.sunshine.core.WearContract;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.ResultCallback;
@@ -36,32 +38,20 @@ public class WeatherService extends WearableListenerService implements DataApi.D
         GoogleApiClient.ConnectionCallbacks,
         GoogleApiClient.OnConnectionFailedListener  {
 
-    public static final  String KEY_WEATHER_CONDITION   = "Condition";
-    public static final  String KEY_WEATHER_TEMPERATURE_HIGH     = "high";
-    public static final  String KEY_WEATHER_TEMPERATURE_LOW      = "low";
-    public static final  String KEY_WEATHER_CONDITION_IMAGE      = "condition_image";
+    public static final  String KEY_WEATHER_CONDITION   = WearContract.KEY_WEATHER_CONDITION;
+    public static final  String KEY_WEATHER_TEMPERATURE_HIGH     = WearContract.KEY_WEATHER_HIGH;
+    public static final  String KEY_WEATHER_TEMPERATURE_LOW      = WearContract.KEY_WEATHER_LOW;
+    public static final  String KEY_WEATHER_CONDITION_IMAGE      = WearContract.KEY_WEATHER_CONDITION_IMAGE;
 
 
-    public static final  String PATH_WEATHER_INFO       = "/SunshineWeatherService/WeatherInfo";
-    public static final  String PATH_SERVICE_REQUIRE    = "/SunshineWeatherService/Require";
+    public static final  String PATH_WEATHER_INFO       = WearContract.PATH_WEATHER_INFO;
+    public static final  String PATH_SERVICE_REQUIRE    = WearContract.PATH_WEATHER_REQUIRE;
     private static final String TAG                     = WeatherService.class.getSimpleName();
     private GoogleApiClient mGoogleApiClient;
 
 
     private String mPeerId;
 
-    private static final int INDEX_WEATHER_ID = 0;
-    private static final int INDEX_MAX_TEMP = 1;
-    private static final int INDEX_MIN_TEMP = 2;
-    private static final int INDEX_SHORT_DESC = 3;
-
-    private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
-    };
-
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "The service is started");
@@ -123,7 +113,6 @@ public class WeatherService extends WearableListenerService implements DataApi.D
         @Override
         protected Object doInBackground( Object[] params )
         {
-            Cursor cursor = null;
             try
             {
                 Log.d( TAG, "Task Running" );
@@ -136,18 +125,21 @@ public class WeatherService extends WearableListenerService implements DataApi.D
                 //load data from database
 
                 Context context = getApplicationContext();
-                String locationQuery = Utility.getPreferredLocation(context);
-
-                Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
 
-                // we'll query our contentProvider, as always
-                 cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
+                // the last sync published today's forecast, so we rarely need the provider
+                ForecastSnapshot today = ForecastBus.getToday(context);
+                // The watch shows today's weather only, never the next day stored, just as
+                // when it queried the provider for today's date
+                if (today != null && today.date
+                        != WeatherContract.normalizeDate(System.currentTimeMillis())) {
+                    today = null;
+                }
 
-                if (cursor.moveToFirst()) {
-                    int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-                    double high = cursor.getDouble(INDEX_MAX_TEMP);
-                    double low = cursor.getDouble(INDEX_MIN_TEMP);
-                    String desc = cursor.getString(INDEX_SHORT_DESC);
+                if (today != null) {
+                    int weatherId = today.weatherId;
+                    double high = today.maxTemp;
+                    double low = today.minTemp;
+                    String desc = today.shortDesc;
 
                     int iconRes = Utility.getIconResourceForWeatherCondition(weatherId);
 
@@ -191,6 +183,9 @@ public class WeatherService extends WearableListenerService implements DataApi.D
                                         }
                                     }
                             );
+                } else {
+                    // Nothing synced for today yet; the watch gets it the next time it asks
+                    SunshineSyncAdapter.syncInBackground(context);
                 }
 
             }
@@ -198,11 +193,6 @@ public class WeatherService extends WearableListenerService implements DataApi.D
             {
                 Log.d( TAG, "Task Fail: " + e );
             }
-            finally {
-                if (cursor != null){
-                    cursor.close();
-                }
-            }
             return null;
         }
     }
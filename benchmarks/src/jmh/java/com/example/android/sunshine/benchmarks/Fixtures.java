@@ -0,0 +1,51 @@
+package com.example.android.sunshine.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * OpenWeatherMap daily forecast responses, 14 days each, in the shape the sync downloads.
+ */
+final class Fixtures {
+    static final String[] DAILY_FORECASTS = {
+            "fixtures/mountain_view_daily_14.json",
+            "fixtures/london_daily_14.json",
+            "fixtures/sydney_daily_14.json"
+    };
+
+    // December 20th, 2014, so dates don't depend on when the benchmark runs
+    static final int JULIAN_START_DAY = 2457012;
+
+    private Fixtures() {
+    }
+
+    /**
+     * @return every fixture's bytes, so benchmarks don't measure resource loading
+     */
+    static byte[][] loadDailyForecasts() throws IOException {
+        byte[][] forecasts = new byte[DAILY_FORECASTS.length][];
+        for (int i = 0; i < DAILY_FORECASTS.length; i++) {
+            forecasts[i] = load(DAILY_FORECASTS[i]);
+        }
+        return forecasts;
+    }
+
+    private static byte[] load(String name) throws IOException {
+        InputStream in = Fixtures.class.getClassLoader().getResourceAsStream(name);
+        if (in == null) {
+            throw new IOException("Missing fixture " + name);
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
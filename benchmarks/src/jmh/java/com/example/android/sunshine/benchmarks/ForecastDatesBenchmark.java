@@ -0,0 +1,45 @@
+package com.example.android.sunshine.benchmarks;
+
+import com.example.android.sunshine.core.ForecastDates;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Date normalization, which the provider does for every row written and every dated query,
+ * and the julian day arithmetic the parser dates every forecast day with.
+ */
+@State(Scope.Thread)
+public class ForecastDatesBenchmark {
+    private final TimeZone mTimeZone = TimeZone.getTimeZone("America/Los_Angeles");
+    private final Calendar mCalendar = Calendar.getInstance(mTimeZone);
+
+    // December 24th, 2014, mid-afternoon
+    private long mDate = 1419465600000L;
+    private int mJulianDay = Fixtures.JULIAN_START_DAY;
+
+    @Benchmark
+    public long normalizeDate() {
+        return ForecastDates.normalizeDate(mDate, mTimeZone);
+    }
+
+    // The provider's bulk insert path, which reuses one Calendar for the whole batch
+    @Benchmark
+    public long normalizeDateReusedCalendar() {
+        return ForecastDates.normalizeDate(mDate, mCalendar);
+    }
+
+    @Benchmark
+    public int getJulianDay() {
+        return ForecastDates.getJulianDay(mDate, mTimeZone);
+    }
+
+    @Benchmark
+    public long getStartOfJulianDay() {
+        return ForecastDates.getStartOfJulianDay(mJulianDay, mTimeZone);
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.android.sunshine.benchmarks;
+
+import com.example.android.sunshine.core.Forecast;
+import com.example.android.sunshine.core.ForecastParseException;
+import com.example.android.sunshine.core.ForecastParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.TimeZone;
+
+/**
+ * Parsing the daily forecasts of a sync of 1, 14 or 1000 locations.  One op is the whole
+ * sync's worth of responses.
+ */
+@State(Scope.Benchmark)
+public class ForecastParserBenchmark {
+
+    @Param({"1", "14", "1000"})
+    public int locations;
+
+    private byte[][] mResponses;
+    private final TimeZone mTimeZone = TimeZone.getTimeZone("America/Los_Angeles");
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[][] fixtures = Fixtures.loadDailyForecasts();
+        mResponses = new byte[locations][];
+        for (int i = 0; i < locations; i++) {
+            mResponses[i] = fixtures[i % fixtures.length];
+        }
+    }
+
+    @Benchmark
+    public void parse(Blackhole blackhole) throws IOException, ForecastParseException {
+        for (byte[] response : mResponses) {
+            Forecast forecast = ForecastParser.parse(new ByteArrayInputStream(response),
+                    Fixtures.JULIAN_START_DAY, mTimeZone);
+            blackhole.consume(forecast);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.android.sunshine.benchmarks;
+
+import com.example.android.sunshine.core.ForecastFormat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.text.SimpleDateFormat;
+
+/**
+ * Formatting a day of forecast the way Utility does for the list, detail view and widgets.
+ * Utility takes its format strings from resources, so the English ones are copied here.
+ */
+@State(Scope.Thread)
+public class FormattingBenchmark {
+    // values/strings.xml: format_temperature, format_wind_kmh and format_wind_mph
+    private static final String FORMAT_TEMPERATURE = "%1.0f\u00B0";
+    private static final String FORMAT_WIND_KMH = "%1$1.0f km/h %2$s";
+    private static final String FORMAT_WIND_MPH = "%1$1.0f mph %2$s";
+
+    // December 24th, 2014
+    private static final long DATE = 1419379200000L;
+
+    private double mTemperature = 21.37;
+    private float mWindSpeed = 12.4f;
+    private float mDegrees = 190f;
+
+    @Benchmark
+    public String temperatureMetric() {
+        return String.format(FORMAT_TEMPERATURE,
+                ForecastFormat.convertTemperature(mTemperature, true));
+    }
+
+    @Benchmark
+    public String temperatureImperial() {
+        return String.format(FORMAT_TEMPERATURE,
+                ForecastFormat.convertTemperature(mTemperature, false));
+    }
+
+    @Benchmark
+    public String windMetric() {
+        return String.format(FORMAT_WIND_KMH,
+                ForecastFormat.convertWindSpeed(mWindSpeed, true),
+                ForecastFormat.getWindDirection(mDegrees));
+    }
+
+    @Benchmark
+    public String windImperial() {
+        return String.format(FORMAT_WIND_MPH,
+                ForecastFormat.convertWindSpeed(mWindSpeed, false),
+                ForecastFormat.getWindDirection(mDegrees));
+    }
+
+    // Utility.getDayName, for days later this week
+    @Benchmark
+    public String dayName() {
+        return new SimpleDateFormat("EEEE").format(DATE);
+    }
+
+    // Utility.getFormattedMonthDay
+    @Benchmark
+    public String monthDay() {
+        return new SimpleDateFormat("MMMM dd").format(DATE);
+    }
+
+    // Utility.getFriendlyDayString, for days more than a week out
+    @Benchmark
+    public String shortDate() {
+        return new SimpleDateFormat("EEE MMM dd").format(DATE);
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.android.sunshine.benchmarks;
+
+import com.example.android.sunshine.core.WeatherCondition;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Mapping OpenWeatherMap weather ids to conditions, which Utility does for every icon, art
+ * resource, art URL and Muzei image.  One op maps one id.
+ */
+@State(Scope.Thread)
+public class WeatherConditionBenchmark {
+    // A spread of ids across every branch of the mapping, including unknown ones
+    private static final int[] WEATHER_IDS = {
+            200, 232, 300, 321, 500, 504, 511, 520, 531, 600, 622, 701, 761, 781, 800, 801,
+            802, 804, 900, 962
+    };
+
+    @Benchmark
+    @OperationsPerInvocation(20)
+    public void fromWeatherId(Blackhole blackhole) {
+        for (int weatherId : WEATHER_IDS) {
+            blackhole.consume(WeatherCondition.fromWeatherId(weatherId));
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.example.android.sunshine.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Everything we pull out of a single OpenWeatherMap daily forecast response.
+ */
+public final class Forecast {
+    // The HTTP_OK equivalent in OWM's "cod" field
+    public static final int CODE_OK = 200;
+
+    public final int messageCode;
+    // The city fields are null and 0 when the response didn't carry a city
+    public final long cityId;
+    public final String cityName;
+    public final double cityLatitude;
+    public final double cityLongitude;
+    public final List<ForecastDay> days;
+
+    public Forecast(int messageCode, long cityId, String cityName, double cityLatitude,
+                    double cityLongitude, List<ForecastDay> days) {
+        this.messageCode = messageCode;
+        this.cityId = cityId;
+        this.cityName = cityName;
+        this.cityLatitude = cityLatitude;
+        this.cityLongitude = cityLongitude;
+        this.days = Collections.unmodifiableList(new ArrayList<ForecastDay>(days));
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.android.sunshine.core;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Date arithmetic for forecast rows.
+ *
+ * Every date that goes into the database is normalized to the start of its day in the
+ * device's time zone, and OWM's daily list is dated by julian day from today.  These do the
+ * same as android.text.format.Time did, with java.util.Calendar.
+ */
+public final class ForecastDates {
+    // The julian day of the Unix epoch, January 1st 1970
+    public static final int EPOCH_JULIAN_DAY = 2440588;
+
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private ForecastDates() {
+    }
+
+    /**
+     * @return the start of the day containing the given time, in the default time zone
+     */
+    public static long normalizeDate(long date) {
+        return normalizeDate(date, TimeZone.getDefault());
+    }
+
+    /**
+     * @return the start of the day containing the given time, in the given time zone
+     */
+    public static long normalizeDate(long date, TimeZone timeZone) {
+        return normalizeDate(date, Calendar.getInstance(timeZone));
+    }
+
+    /**
+     * Normalize a date with a Calendar the caller reuses, rather than allocate one per date.
+     *
+     * @param calendar set to the time zone whose days to use; its time is overwritten
+     * @return the start of the day containing the given time
+     */
+    public static long normalizeDate(long date, Calendar calendar) {
+        calendar.setTimeInMillis(date);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * @return the julian day the given time falls on, in the given time zone
+     */
+    public static int getJulianDay(long date, TimeZone timeZone) {
+        long localMillis = date + timeZone.getOffset(date);
+        return (int) Math.floor((double) localMillis / DAY_IN_MILLIS) + EPOCH_JULIAN_DAY;
+    }
+
+    /**
+     * @return the start of the given julian day, in the given time zone
+     */
+    public static long getStartOfJulianDay(int julianDay, TimeZone timeZone) {
+        // Read the calendar date of the julian day in UTC, then find its midnight locally
+        Calendar utc = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        utc.setTimeInMillis((julianDay - EPOCH_JULIAN_DAY) * DAY_IN_MILLIS);
+
+        Calendar local = Calendar.getInstance(timeZone);
+        local.clear();
+        local.set(utc.get(Calendar.YEAR), utc.get(Calendar.MONTH),
+                utc.get(Calendar.DAY_OF_MONTH));
+        return local.getTimeInMillis();
+    }
+}
@@ -0,0 +1,31 @@
+package com.example.android.sunshine.core;
+
+/**
+ * One day of a location's forecast, as OpenWeatherMap reports it.  Temperatures are in
+ * Celsius, wind speed in km/h, and the date is normalized to the start of the day.
+ */
+public final class ForecastDay {
+    public final long date;
+    public final int weatherId;
+    public final String shortDesc;
+    public final double minTemp;
+    public final double maxTemp;
+    public final double humidity;
+    public final double pressure;
+    public final double windSpeed;
+    public final double degrees;
+
+    public ForecastDay(long date, int weatherId, String shortDesc, double minTemp,
+                       double maxTemp, double humidity, double pressure, double windSpeed,
+                       double degrees) {
+        this.date = date;
+        this.weatherId = weatherId;
+        this.shortDesc = shortDesc;
+        this.minTemp = minTemp;
+        this.maxTemp = maxTemp;
+        this.humidity = humidity;
+        this.pressure = pressure;
+        this.windSpeed = windSpeed;
+        this.degrees = degrees;
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.android.sunshine.core;
+
+/**
+ * Unit conversions and the locale-independent parts of formatting a forecast for display.
+ * Forecasts are stored in metric units.
+ */
+public final class ForecastFormat {
+
+    private static final float KMH_TO_MPH = .621371192237334f;
+
+    private ForecastFormat() {
+    }
+
+    /**
+     * @return the Celsius temperature in the units the user wants
+     */
+    public static double convertTemperature(double celsius, boolean metric) {
+        return metric ? celsius : (celsius * 1.8) + 32;
+    }
+
+    /**
+     * @return the km/h wind speed in the units the user wants
+     */
+    public static float convertWindSpeed(float kmh, boolean metric) {
+        return metric ? kmh : KMH_TO_MPH * kmh;
+    }
+
+    /**
+     * From wind direction in degrees, determine compass direction as a string (e.g NW)
+     *
+     * @param degrees meteorological degrees, 0 being north
+     * @return the compass direction, or "Unknown" if the degrees are out of range
+     */
+    public static String getWindDirection(float degrees) {
+        if (degrees >= 337.5 || degrees < 22.5) {
+            return "N";
+        } else if (degrees >= 22.5 && degrees < 67.5) {
+            return "NE";
+        } else if (degrees >= 67.5 && degrees < 112.5) {
+            return "E";
+        } else if (degrees >= 112.5 && degrees < 157.5) {
+            return "SE";
+        } else if (degrees >= 157.5 && degrees < 202.5) {
+            return "S";
+        } else if (degrees >= 202.5 && degrees < 247.5) {
+            return "SW";
+        } else if (degrees >= 247.5 && degrees < 292.5) {
+            return "W";
+        } else if (degrees >= 292.5 && degrees < 337.5) {
+            return "NW";
+        }
+        return "Unknown";
+    }
+}
@@ -0,0 +1,16 @@
+package com.example.android.sunshine.core;
+
+/**
+ * Thrown when a forecast response does not have the shape we expect.
+ */
+public class ForecastParseException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public ForecastParseException(String message) {
+        super(message);
+    }
+
+    public ForecastParseException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
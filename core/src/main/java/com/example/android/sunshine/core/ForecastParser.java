@@ -0,0 +1,321 @@
+package com.example.android.sunshine.core;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Streaming parser for the OpenWeatherMap daily forecast response.
+ *
+ * Instead of reading the whole response into a String and building a tree, we walk the
+ * "city" and "list" structure token by token straight off the input stream and emit one
+ * ForecastDay per element of the list.
+ */
+public final class ForecastParser {
+
+    // These are the names of the JSON objects that need to be extracted.
+
+    // Location information
+    private static final String OWM_CITY = "city";
+    private static final String OWM_CITY_ID = "id";
+    private static final String OWM_CITY_NAME = "name";
+    private static final String OWM_COORD = "coord";
+
+    // Location coordinate
+    private static final String OWM_LATITUDE = "lat";
+    private static final String OWM_LONGITUDE = "lon";
+
+    // Weather information.  Each day's forecast info is an element of the "list" array.
+    private static final String OWM_LIST = "list";
+
+    private static final String OWM_PRESSURE = "pressure";
+    private static final String OWM_HUMIDITY = "humidity";
+    private static final String OWM_WINDSPEED = "speed";
+    private static final String OWM_WIND_DIRECTION = "deg";
+
+    // All temperatures are children of the "temp" object.
+    private static final String OWM_TEMPERATURE = "temp";
+    private static final String OWM_MAX = "max";
+    private static final String OWM_MIN = "min";
+
+    private static final String OWM_WEATHER = "weather";
+    private static final String OWM_DESCRIPTION = "main";
+    private static final String OWM_WEATHER_ID = "id";
+
+    private static final String OWM_MESSAGE_CODE = "cod";
+
+    // The fields every day must have, as bits in the mask of the fields seen
+    private static final int FIELD_WEATHER_ID = 1;
+    private static final int FIELD_SHORT_DESC = 1 << 1;
+    private static final int FIELD_MIN_TEMP = 1 << 2;
+    private static final int FIELD_MAX_TEMP = 1 << 3;
+    private static final int FIELD_HUMIDITY = 1 << 4;
+    private static final int FIELD_PRESSURE = 1 << 5;
+    private static final int FIELD_WIND_SPEED = 1 << 6;
+    private static final int FIELD_DEGREES = 1 << 7;
+    private static final int ALL_DAY_FIELDS = (1 << 8) - 1;
+
+    private ForecastParser() {
+    }
+
+    /**
+     * Parse a forecast response as it streams in, dating the days in the default time zone.
+     *
+     * @see #parse(InputStream, int, TimeZone)
+     */
+    public static Forecast parse(InputStream in, int julianStartDay)
+            throws IOException, ForecastParseException {
+        return parse(in, julianStartDay, TimeZone.getDefault());
+    }
+
+    /**
+     * Parse a forecast response as it streams in.
+     *
+     * OWM returns daily forecasts based upon the local time of the city that is being asked
+     * for, in order, starting with the current day.  So rather than trust its timestamps, the
+     * i-th day is dated julianStartDay + i.
+     *
+     * @param in the response body, positioned at the start of the JSON document
+     * @param julianStartDay the julian day of the first element of the "list" array
+     * @param timeZone the time zone whose midnights the days are dated by
+     * @return the parsed forecast; check {@link Forecast#messageCode} before using the days
+     * @throws IOException if the stream cannot be read
+     * @throws ForecastParseException if the document does not have the shape we expect
+     */
+    public static Forecast parse(InputStream in, int julianStartDay, TimeZone timeZone)
+            throws IOException, ForecastParseException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            return readForecast(reader, julianStartDay, timeZone);
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            // JsonReader reports an unexpected shape as a runtime exception, or as an
+            // IOException if it isn't JSON at all; neither means the stream failed.
+            throw new ForecastParseException(e.getMessage(), e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Parse a multi-city response, dating the days in the default time zone.
+     *
+     * @see #parseGroup(InputStream, int, TimeZone)
+     */
+    public static List<Forecast> parseGroup(InputStream in, int julianStartDay)
+            throws IOException, ForecastParseException {
+        return parseGroup(in, julianStartDay, TimeZone.getDefault());
+    }
+
+    /**
+     * Parse a response carrying the forecasts of several cities at once, as a "list" array
+     * whose elements each have the shape of a single-city response.  Cities the server
+     * couldn't answer for are simply missing from the list.
+     *
+     * @param in the response body, positioned at the start of the JSON document
+     * @param julianStartDay the julian day of the first day of every city's forecast
+     * @param timeZone the time zone whose midnights the days are dated by
+     * @return the forecast of each city in the response, in the order they were sent
+     * @throws IOException if the stream cannot be read
+     * @throws ForecastParseException if the document does not have the shape we expect
+     */
+    public static List<Forecast> parseGroup(InputStream in, int julianStartDay,
+                                            TimeZone timeZone)
+            throws IOException, ForecastParseException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            List<Forecast> forecasts = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (OWM_LIST.equals(reader.nextName())) {
+                    forecasts = new ArrayList<Forecast>();
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        forecasts.add(readForecast(reader, julianStartDay, timeZone));
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if (forecasts == null) {
+                throw new ForecastParseException("Group response is missing the list element");
+            }
+            return forecasts;
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            throw new ForecastParseException(e.getMessage(), e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static Forecast readForecast(JsonReader reader, int julianStartDay,
+                                         TimeZone timeZone)
+            throws IOException, ForecastParseException {
+        int messageCode = Forecast.CODE_OK;
+        City city = null;
+        List<ForecastDay> days = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_MESSAGE_CODE.equals(name)) {
+                // OWM sends this either as a number or as a numeric string
+                messageCode = reader.nextInt();
+            } else if (OWM_CITY.equals(name)) {
+                city = readCity(reader);
+            } else if (OWM_LIST.equals(name)) {
+                days = readDays(reader, julianStartDay, timeZone);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (messageCode == Forecast.CODE_OK && (city == null || days == null)) {
+            throw new ForecastParseException("Forecast is missing the city or list element");
+        }
+        return new Forecast(messageCode,
+                city != null ? city.id : 0,
+                city != null ? city.name : null,
+                city != null ? city.latitude : 0,
+                city != null ? city.longitude : 0,
+                days != null ? days : new ArrayList<ForecastDay>());
+    }
+
+    private static final class City {
+        long id;
+        String name;
+        double latitude;
+        double longitude;
+    }
+
+    private static City readCity(JsonReader reader) throws IOException {
+        City city = new City();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_ID.equals(name)) {
+                city.id = reader.nextLong();
+            } else if (OWM_CITY_NAME.equals(name)) {
+                city.name = reader.nextString();
+            } else if (OWM_COORD.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordName = reader.nextName();
+                    if (OWM_LATITUDE.equals(coordName)) {
+                        city.latitude = reader.nextDouble();
+                    } else if (OWM_LONGITUDE.equals(coordName)) {
+                        city.longitude = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return city.name != null ? city : null;
+    }
+
+    private static List<ForecastDay> readDays(JsonReader reader, int julianStartDay,
+                                              TimeZone timeZone)
+            throws IOException, ForecastParseException {
+        List<ForecastDay> days = new ArrayList<ForecastDay>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            long date = ForecastDates.getStartOfJulianDay(julianStartDay + days.size(), timeZone);
+            int weatherId = 0;
+            String shortDesc = null;
+            double minTemp = 0;
+            double maxTemp = 0;
+            double humidity = 0;
+            double pressure = 0;
+            double windSpeed = 0;
+            double degrees = 0;
+            int seen = 0;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_PRESSURE.equals(name)) {
+                    pressure = reader.nextDouble();
+                    seen |= FIELD_PRESSURE;
+                } else if (OWM_HUMIDITY.equals(name)) {
+                    humidity = reader.nextInt();
+                    seen |= FIELD_HUMIDITY;
+                } else if (OWM_WINDSPEED.equals(name)) {
+                    windSpeed = reader.nextDouble();
+                    seen |= FIELD_WIND_SPEED;
+                } else if (OWM_WIND_DIRECTION.equals(name)) {
+                    degrees = reader.nextDouble();
+                    seen |= FIELD_DEGREES;
+                } else if (OWM_TEMPERATURE.equals(name)) {
+                    // Temperatures are in a child object called "temp".  Try not to name
+                    // variables "temp" when working with temperature.  It confuses everybody.
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String tempName = reader.nextName();
+                        if (OWM_MAX.equals(tempName)) {
+                            maxTemp = reader.nextDouble();
+                            seen |= FIELD_MAX_TEMP;
+                        } else if (OWM_MIN.equals(tempName)) {
+                            minTemp = reader.nextDouble();
+                            seen |= FIELD_MIN_TEMP;
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                } else if (OWM_WEATHER.equals(name)) {
+                    // Description is in a child array called "weather", which is 1 element
+                    // long.  That element also contains a weather code.
+                    reader.beginArray();
+                    if (reader.hasNext() && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            String weatherName = reader.nextName();
+                            if (OWM_DESCRIPTION.equals(weatherName)) {
+                                shortDesc = reader.nextString();
+                                seen |= FIELD_SHORT_DESC;
+                            } else if (OWM_WEATHER_ID.equals(weatherName)) {
+                                weatherId = reader.nextInt();
+                                seen |= FIELD_WEATHER_ID;
+                            } else {
+                                reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                    }
+                    while (reader.hasNext()) {
+                        reader.skipValue();
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            // A day without one of these would be stored as 0 degrees or no description
+            if (seen != ALL_DAY_FIELDS) {
+                throw new ForecastParseException("Forecast day " + days.size()
+                        + " is missing a field");
+            }
+            days.add(new ForecastDay(date, weatherId, shortDesc, minTemp, maxTemp, humidity,
+                    pressure, windSpeed, degrees));
+        }
+        reader.endArray();
+        return days;
+    }
+}
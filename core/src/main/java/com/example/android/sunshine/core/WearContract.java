@@ -0,0 +1,19 @@
+package com.example.android.sunshine.core;
+
+/**
+ * The Wearable data layer paths and keys the phone and the watch face exchange the weather
+ * through.
+ */
+public final class WearContract {
+    // The watch asks for the weather on this path, and the phone answers on PATH_WEATHER_INFO
+    public static final String PATH_WEATHER_REQUIRE = "/SunshineWeatherService/Require";
+    public static final String PATH_WEATHER_INFO = "/SunshineWeatherService/WeatherInfo";
+
+    public static final String KEY_WEATHER_CONDITION = "Condition";
+    public static final String KEY_WEATHER_CONDITION_IMAGE = "condition_image";
+    public static final String KEY_WEATHER_HIGH = "high";
+    public static final String KEY_WEATHER_LOW = "low";
+
+    private WearContract() {
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.android.sunshine.core;
+
+/**
+ * The kinds of weather we have art for, and how OpenWeatherMap's condition codes map onto
+ * them.  Based on weather code data found at:
+ * http://bugs.openweathermap.org/projects/api/wiki/Weather_Condition_Codes
+ */
+public enum WeatherCondition {
+    STORM("storm",
+            "http://upload.wikimedia.org/wikipedia/commons/2/28/Thunderstorm_in_Annemasse,_France.jpg"),
+    LIGHT_RAIN("light_rain",
+            "http://upload.wikimedia.org/wikipedia/commons/a/a0/Rain_on_leaf_504605006.jpg"),
+    RAIN("rain",
+            "http://upload.wikimedia.org/wikipedia/commons/6/6c/Rain-on-Thassos.jpg"),
+    SNOW("snow",
+            "http://upload.wikimedia.org/wikipedia/commons/b/b8/Fresh_snow.JPG"),
+    FOG("fog",
+            "http://upload.wikimedia.org/wikipedia/commons/e/e6/Westminster_fog_-_London_-_UK.jpg"),
+    // Muzei shows dust rather than the storm picture for squalls and tornadoes
+    SQUALL("storm",
+            "http://upload.wikimedia.org/wikipedia/commons/d/dc/Raised_dust_ahead_of_a_severe_thunderstorm_1.jpg"),
+    CLEAR("clear",
+            "http://upload.wikimedia.org/wikipedia/commons/7/7e/A_few_trees_and_the_sun_(6009964513).jpg"),
+    LIGHT_CLOUDS("light_clouds",
+            "http://upload.wikimedia.org/wikipedia/commons/e/e7/Cloudy_Blue_Sky_(5031259890).jpg"),
+    CLOUDS("clouds",
+            "http://upload.wikimedia.org/wikipedia/commons/5/54/Cloudy_hills_in_Elis,_Greece_2.jpg");
+
+    // The name of the condition's art in an art pack, e.g. "light_rain"
+    public final String artName;
+    // A photo of the condition, for Muzei
+    public final String imageUrl;
+
+    WeatherCondition(String artName, String imageUrl) {
+        this.artName = artName;
+        this.imageUrl = imageUrl;
+    }
+
+    /**
+     * @param weatherId from OpenWeatherMap API response
+     * @return the condition, or null if the code isn't one we have art for
+     */
+    public static WeatherCondition fromWeatherId(int weatherId) {
+        if (weatherId >= 200 && weatherId <= 232) {
+            return STORM;
+        } else if (weatherId >= 300 && weatherId <= 321) {
+            return LIGHT_RAIN;
+        } else if (weatherId >= 500 && weatherId <= 504) {
+            return RAIN;
+        } else if (weatherId == 511) {
+            return SNOW;
+        } else if (weatherId >= 520 && weatherId <= 531) {
+            return RAIN;
+        } else if (weatherId >= 600 && weatherId <= 622) {
+            return SNOW;
+        } else if (weatherId >= 701 && weatherId <= 761) {
+            return FOG;
+        } else if (weatherId == 761 || weatherId == 781) {
+            return SQUALL;
+        } else if (weatherId == 800) {
+            return CLEAR;
+        } else if (weatherId == 801) {
+            return LIGHT_CLOUDS;
+        } else if (weatherId >= 802 && weatherId <= 804) {
+            return CLOUDS;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.android.sunshine.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ForecastParserTest {
+    private static final TimeZone TIME_ZONE = TimeZone.getTimeZone("America/Los_Angeles");
+    // December 20th, 2014
+    private static final int JULIAN_START_DAY = 2457012;
+
+    private static final String FORECAST_JSON = "{\"city\":{\"id\":5375480,"
+            + "\"name\":\"Mountain View\",\"coord\":{\"lon\":-122.08,\"lat\":37.39}},"
+            + "\"cod\":\"200\",\"cnt\":2,\"list\":["
+            + "{\"dt\":1419019200,\"temp\":{\"day\":11.2,\"min\":8.5,\"max\":12.6},"
+            + "\"pressure\":1001.5,\"humidity\":91,\"weather\":[{\"id\":501,"
+            + "\"main\":\"Rain\",\"description\":\"moderate rain\"}],\"speed\":4.1,\"deg\":190},"
+            + "{\"dt\":1419105600,\"temp\":{\"day\":13.1,\"min\":9.9,\"max\":14.0},"
+            + "\"pressure\":1010.0,\"humidity\":80,\"weather\":[{\"id\":800,"
+            + "\"main\":\"Clear\",\"description\":\"sky is clear\"}],\"speed\":1.5,\"deg\":10}]}";
+
+    @Test
+    public void parsesCityAndDays() throws Exception {
+        Forecast forecast = ForecastParser.parse(stream(FORECAST_JSON), JULIAN_START_DAY, TIME_ZONE);
+
+        assertEquals(Forecast.CODE_OK, forecast.messageCode);
+        assertEquals(5375480, forecast.cityId);
+        assertEquals("Mountain View", forecast.cityName);
+        assertEquals(37.39, forecast.cityLatitude, 0);
+        assertEquals(-122.08, forecast.cityLongitude, 0);
+        assertEquals(2, forecast.days.size());
+
+        ForecastDay day = forecast.days.get(0);
+        assertEquals(501, day.weatherId);
+        assertEquals("Rain", day.shortDesc);
+        assertEquals(8.5, day.minTemp, 0);
+        assertEquals(12.6, day.maxTemp, 0);
+        assertEquals(91, day.humidity, 0);
+        assertEquals(1001.5, day.pressure, 0);
+        assertEquals(4.1, day.windSpeed, 0);
+        assertEquals(190, day.degrees, 0);
+
+        // Days are dated from the start day, a day apart, at local midnight
+        assertEquals(ForecastDates.getStartOfJulianDay(JULIAN_START_DAY, TIME_ZONE), day.date);
+        assertEquals(day.date, ForecastDates.normalizeDate(day.date, TIME_ZONE));
+        assertEquals(JULIAN_START_DAY + 1,
+                ForecastDates.getJulianDay(forecast.days.get(1).date, TIME_ZONE));
+    }
+
+    @Test
+    public void reportsErrorCodes() throws Exception {
+        Forecast forecast = ForecastParser.parse(
+                stream("{\"cod\":\"404\",\"message\":\"Error: Not found city\"}"),
+                JULIAN_START_DAY, TIME_ZONE);
+
+        assertEquals(404, forecast.messageCode);
+        assertTrue(forecast.days.isEmpty());
+    }
+
+    @Test
+    public void rejectsMalformedForecasts() throws Exception {
+        String[] malformed = {
+                "{\"cod\":\"200\",\"list\":[]}",
+                "{\"cod\":\"200\",\"city\":{\"name\":\"Nowhere\"},\"list\":{}}",
+                "{\"cod\":\"abc\"}",
+                "<html>Bad gateway</html>"
+        };
+        for (String json : malformed) {
+            try {
+                ForecastParser.parse(stream(json), JULIAN_START_DAY, TIME_ZONE);
+                fail("Expected a ForecastParseException for " + json);
+            } catch (ForecastParseException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void rejectsDaysMissingAField() throws Exception {
+        // Each of these is cut out of the first day in turn
+        String[] fields = {
+                "\"min\":8.5,",
+                ",\"max\":12.6",
+                "\"pressure\":1001.5,",
+                "\"humidity\":91,",
+                "\"id\":501,",
+                "\"main\":\"Rain\",",
+                "\"weather\":[{\"id\":501,\"main\":\"Rain\",\"description\":\"moderate rain\"}],",
+                ",\"speed\":4.1",
+                ",\"deg\":190"
+        };
+        for (String field : fields) {
+            assertTrue(field, FORECAST_JSON.contains(field));
+            String json = FORECAST_JSON.replace(field, "");
+            try {
+                ForecastParser.parse(stream(json), JULIAN_START_DAY, TIME_ZONE);
+                fail("Expected a ForecastParseException without " + field);
+            } catch (ForecastParseException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void parsesGroupResponses() throws Exception {
+        String group = "{\"cnt\":2,\"list\":[" + FORECAST_JSON + ","
+                + FORECAST_JSON.replace("5375480", "2643743") + "]}";
+        List<Forecast> forecasts =
+                ForecastParser.parseGroup(stream(group), JULIAN_START_DAY, TIME_ZONE);
+
+        assertEquals(2, forecasts.size());
+        assertEquals(5375480, forecasts.get(0).cityId);
+        assertEquals(2643743, forecasts.get(1).cityId);
+        assertEquals(2, forecasts.get(1).days.size());
+    }
+
+    private static InputStream stream(String json) throws Exception {
+        return new ByteArrayInputStream(json.getBytes("UTF-8"));
+    }
+}
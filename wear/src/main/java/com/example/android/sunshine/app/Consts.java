@@ -1,17 +1,19 @@
 package com.example.android.sunshine.app;
 
+import com.example.android.sunshine.core.WearContract;
+
 /**
  * Created by mudasar on 28/04/16.
  */
 public class Consts {
     public static final String KEY_CONFIG_REQUIRE_INTERVAL = "RequireInterval";
-    public static final String KEY_WEATHER_CONDITION = "Condition";
-    public static final  String KEY_WEATHER_CONDITION_IMAGE      = "condition_image";
-    public static final String KEY_WEATHER_LOW = "low";
-    public static final String KEY_WEATHER_HIGH = "high";
+    public static final String KEY_WEATHER_CONDITION = WearContract.KEY_WEATHER_CONDITION;
+    public static final  String KEY_WEATHER_CONDITION_IMAGE      = WearContract.KEY_WEATHER_CONDITION_IMAGE;
+    public static final String KEY_WEATHER_LOW = WearContract.KEY_WEATHER_LOW;
+    public static final String KEY_WEATHER_HIGH = WearContract.KEY_WEATHER_HIGH;
     public static final String KEY_CONFIG_THEME = "Theme";
     public static final String KEY_WEATHER_UPDATE_TIME = "Update_Time";
     public static final String PATH_WEATHER_ASSET = "/SunshineWeatherService/WeatherAsset";
-    public static final  String PATH_WEATHER_INFO       = "/SunshineWeatherService/WeatherInfo";
-    public static final String PATH_WEATHER_REQUIRE = "/SunshineWeatherService/Require";
+    public static final  String PATH_WEATHER_INFO       = WearContract.PATH_WEATHER_INFO;
+    public static final String PATH_WEATHER_REQUIRE = WearContract.PATH_WEATHER_REQUIRE;
 }